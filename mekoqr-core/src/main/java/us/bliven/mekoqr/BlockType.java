@@ -25,15 +25,13 @@
 package us.bliven.mekoqr;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
  
 /**
  * Represents a type of block, e.g. stone, pillar, etc.
  * 
  * Blocks with several orientations are represented by a subtype.
  * 
- * BlockType is immutable.
+ * BlockType is immutable, and all lookup methods are thread-safe.
  * @author blivens
  *
  */
@@ -279,7 +277,10 @@ public class BlockType {
 	public static final BlockType UNKNOWN_30 = new BlockType(0x30,"Unknown30","?", new BlockType[0], false);
 
 
-	private static final Map<Byte,BlockType> knownTypes = new HashMap<>();
+	/** Top-level types, indexed by unsigned value */
+	private static final BlockType[] byValue = new BlockType[256];
+	/** All types, indexed by unsigned code */
+	private static final BlockType[] byCode = new BlockType[1<<16];
 	static {
 		Arrays.asList(
 				AIR,
@@ -332,10 +333,19 @@ public class BlockType {
 				UNKNOWN_2F,
 				UNKNOWN_30
 			).stream()
-			.forEach((blk) -> knownTypes.put(blk.getValue(),blk) );
+			.forEach(BlockType::register);
+		// Placeholders for unrecognized values. The tables are never modified
+		// after class initialization, so lookups are safe from any thread.
+		for(int i=0;i<byValue.length;i++) {
+			if(byValue[i] == null) {
+				register(new BlockType(i, String.format("Blk%02x",i),"?"));
+			}
+		}
 	}
 	
 	private BlockType parent;
+	private short code;
+	private byte[] values;
 	private final byte value;
 	private final String name;
 	private final String shortName;//1 char name
@@ -359,6 +369,8 @@ public class BlockType {
 	}
 	private BlockType(byte value, String name, String shortName,BlockType[] subtypes,boolean standard) {
 		this.value = value;
+		this.code = (short) (value & 0xff);
+		this.values = new byte[] {value};
 		this.name = name;
 		if(shortName.length() > 1) {
 			throw new IllegalArgumentException("Short name too long");
@@ -369,32 +381,70 @@ public class BlockType {
 		if(subtypes != null) {
 			for(BlockType sub : subtypes) {
 				sub.parent = this;
+				sub.code = (short) ((value & 0xff) << 8 | (sub.value & 0xff));
+				sub.values = new byte[] {value, sub.value};
 			}
 		}
 		this.standard = standard;
 	}
 
+	private static void register(BlockType blk) {
+		byValue[blk.value & 0xff] = blk;
+		byCode[blk.code & 0xffff] = blk;
+		for(BlockType sub : blk.subtypes) {
+			byCode[sub.code & 0xffff] = sub;
+		}
+	}
+
+	/**
+	 * Get the top-level block type for a value.
+	 * Unrecognized values give a placeholder type named "BlkXX".
+	 * @param b
+	 * @return
+	 */
 	public static BlockType fromByte(byte b) {
-		if(knownTypes.containsKey(b)) {
-			return knownTypes.get(b);
-		} else {
-			BlockType t = new BlockType(b, String.format("Blk%02x",b),"?");
-			knownTypes.put(b,t);
+		return byValue[b & 0xff];
+	}
+	/**
+	 * Get the block type for a code from {@link #getCode()}
+	 * @param code
+	 * @return
+	 * @throws IllegalArgumentException if the code has an unknown subtype
+	 */
+	public static BlockType fromCode(short code) {
+		BlockType t = byCode[code & 0xffff];
+		if(t != null) {
 			return t;
 		}
+		// Only unknown subtypes are missing
+		return fromByte((byte) (code >> 8)).getSubtype((byte) code);
+	}
+	/**
+	 * Compact identifier for this type. Top-level types use their value,
+	 * while subtypes combine the parent's value (high byte) with their
+	 * own (low byte). Air is always 0.
+	 * @return
+	 */
+	public short getCode() {
+		return code;
 	}
 	public byte getValue() {
 		return value;
 	}
+	/**
+	 * Get the serialized representation of this type: the value for
+	 * top-level types, or the parent value followed by the subtype value.
+	 * @return a new array of bytes
+	 */
 	public byte[] getValues() {
-		if(parent == null) {
-			return new byte[] {value};
-		} else {
-			byte[] par = parent.getValues();
-			byte[] vals = Arrays.copyOf(par, par.length+1);
-			vals[par.length] = value;
-			return vals;
-		}
+		return values.clone();
+	}
+	/**
+	 * Same as {@link #getValues()}, but without copying.
+	 * @return bytes. The array is shared and must not be modified.
+	 */
+	byte[] values() {
+		return values;
 	}
 	public String getName() {
 		return name;
@@ -409,12 +459,9 @@ public class BlockType {
 		return subtypes;
 	}
 	public BlockType getSubtype(byte val) {
-		if( hasSubtypes() ) {
-			for(BlockType sub : subtypes) {
-				if(sub.getValue() == val) {
-					return sub;
-				}
-			}
+		BlockType sub = byCode[(value & 0xff) << 8 | (val & 0xff)];
+		if( sub != null && sub.parent == this ) {
+			return sub;
 		}
 		throw new IllegalArgumentException(String.format("Unrecognized subtype 0x%x of %s",val, getName()));
 	}
@@ -0,0 +1,100 @@
+package us.bliven.mekoqr;
+
+import java.nio.ByteBuffer;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Luminance source backed by an 8-bit plane in a ByteBuffer, such as a
+ * direct buffer from a camera driver.
+ *
+ * Rows are read straight from the buffer. ZXing's binarizers need the
+ * whole matrix as a byte array, so it is copied out once on first request
+ * and shared after that. The buffer's position and limit are not modified.
+ */
+class ByteBufferLuminanceSource extends LuminanceSource {
+	private final ByteBuffer buffer;
+	private final int origin;
+	private final int stride;
+	private final int left;
+	private final int top;
+	private volatile byte[] matrix;
+
+	/**
+	 * @param buffer pixel data, starting at the buffer's current position
+	 * @param stride bytes per row
+	 * @param left left edge of the crop rectangle
+	 * @param top top edge of the crop rectangle
+	 * @param width crop width
+	 * @param height crop height
+	 */
+	ByteBufferLuminanceSource(ByteBuffer buffer, int stride, int left, int top, int width, int height) {
+		this(buffer, buffer.position(), stride, left, top, width, height);
+	}
+
+	private ByteBufferLuminanceSource(ByteBuffer buffer, int origin, int stride, int left, int top, int width, int height) {
+		super(width, height);
+		if(left < 0 || top < 0 || width < 1 || height < 1 || left + width > stride) {
+			throw new IllegalArgumentException("Crop rectangle must fit within the image");
+		}
+		if(origin + (long) (top + height - 1)*stride + left + width > buffer.limit()) {
+			throw new IllegalArgumentException("Crop rectangle extends past the end of the buffer");
+		}
+		this.buffer = buffer.duplicate();
+		this.origin = origin;
+		this.stride = stride;
+		this.left = left;
+		this.top = top;
+	}
+
+	@Override
+	public byte[] getRow(int y, byte[] row) {
+		if(y < 0 || y >= getHeight()) {
+			throw new IllegalArgumentException("Requested row is outside the image: " + y);
+		}
+		int width = getWidth();
+		if(row == null || row.length < width) {
+			row = new byte[width];
+		}
+		byte[] m = matrix;
+		if(m != null) {
+			System.arraycopy(m, y*width, row, 0, width);
+		} else {
+			// duplicate so concurrent readers don't share a position
+			ByteBuffer b = buffer.duplicate();
+			b.position(origin + (top+y)*stride + left);
+			b.get(row, 0, width);
+		}
+		return row;
+	}
+
+	/**
+	 * @return The cropped matrix. Callers must not modify it.
+	 */
+	@Override
+	public synchronized byte[] getMatrix() {
+		if(matrix == null) {
+			int width = getWidth();
+			int height = getHeight();
+			byte[] m = new byte[width*height];
+			ByteBuffer b = buffer.duplicate();
+			for(int y=0;y<height;y++) {
+				b.position(origin + (top+y)*stride + left);
+				b.get(m, y*width, width);
+			}
+			matrix = m;
+		}
+		return matrix;
+	}
+
+	@Override
+	public boolean isCropSupported() {
+		return true;
+	}
+
+	@Override
+	public LuminanceSource crop(int left, int top, int width, int height) {
+		return new ByteBufferLuminanceSource(buffer, origin, stride,
+				this.left + left, this.top + top, width, height);
+	}
+}
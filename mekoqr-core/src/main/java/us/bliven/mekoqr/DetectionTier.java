@@ -0,0 +1,71 @@
+package us.bliven.mekoqr;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Binarizer;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.common.GlobalHistogramBinarizer;
+import com.google.zxing.common.HybridBinarizer;
+
+/**
+ * Strategies for locating a QR code in an image, roughly in order of
+ * increasing cost.
+ * 
+ * Tiers which transform the image (scaling, cropping, rotating) report
+ * result points in the transformed coordinates.
+ * @see MekoReader#setTiers(DetectionTier...)
+ *
+ */
+public enum DetectionTier {
+	/** Single global threshold. Fastest; fine for clean screenshots */
+	GLOBAL(Function.identity(), GlobalHistogramBinarizer::new, false),
+	/** Image shrunk by half before detection. Fast on large, noisy photos */
+	HALF_SCALE((source) -> LuminanceSources.downscale(source, 2), HybridBinarizer::new, false),
+	/** Local thresholds, which handle uneven lighting */
+	HYBRID(Function.identity(), HybridBinarizer::new, false),
+	/** Local thresholds plus ZXing's exhaustive search */
+	TRY_HARDER(Function.identity(), HybridBinarizer::new, true),
+	/** Exhaustive search of the central region, ignoring clutter near the edges */
+	CENTER((source) -> LuminanceSources.center(source, 2/3.), HybridBinarizer::new, true),
+	/** Exhaustive search of the image rotated by 90 degrees */
+	ROTATED(LuminanceSources::rotate, HybridBinarizer::new, true),
+	;
+
+	private final Function<LuminanceSource, LuminanceSource> prepare;
+	private final Function<LuminanceSource, Binarizer> binarizer;
+	private final Map<DecodeHintType, Object> hints;
+
+	private DetectionTier(Function<LuminanceSource, LuminanceSource> prepare,
+			Function<LuminanceSource, Binarizer> binarizer, boolean tryHarder) {
+		this.prepare = prepare;
+		this.binarizer = binarizer;
+		Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+		hints.put(DecodeHintType.POSSIBLE_FORMATS, Arrays.asList(BarcodeFormat.QR_CODE));
+		if(tryHarder) {
+			hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+		}
+		this.hints = Collections.unmodifiableMap(hints);
+	}
+
+	BinaryBitmap bitmap(LuminanceSource source) {
+		return new BinaryBitmap(binarizer.apply(prepare.apply(source)));
+	}
+
+	Map<DecodeHintType, Object> getHints() {
+		return hints;
+	}
+
+	/**
+	 * @return true if result points are in the coordinates of the input image
+	 */
+	boolean preservesCoordinates() {
+		return this == GLOBAL || this == HYBRID || this == TRY_HARDER;
+	}
+}
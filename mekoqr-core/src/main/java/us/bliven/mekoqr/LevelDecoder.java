@@ -0,0 +1,181 @@
+package us.bliven.mekoqr;
+
+import static us.bliven.mekoqr.MekoLevel.SIZE;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental level parser.
+ *
+ * The title, author and blocks are parsed from each chunk of output as it
+ * is inflated, so the uncompressed level is never held in memory (unless
+ * the serialized data was requested).
+ *
+ * Instances hold scratch buffers and are not thread-safe.
+ */
+class LevelDecoder {
+	private static final Logger logger = LoggerFactory.getLogger(LevelDecoder.class);
+
+	/** Level consists of two strings (1 + 16 bytes) and the blocks, which can be 1 or 2 bytes */
+	static final int MAX_UNCOMPRESSED = 17*2+SIZE*SIZE*SIZE*2;
+
+	private final byte[] chunk = new byte[512];
+	private final byte[] text = new byte[255];
+
+	/**
+	 * Parse a zlib-compressed level
+	 * @param compressed compressed data
+	 * @param offset start of the zlib stream within compressed
+	 * @param length length of the zlib stream
+	 * @param storeData whether to keep the uncompressed data in the level
+	 * @return the parsed level
+	 * @throws ZipException for invalid compressed data
+	 * @throws DataFormatException for incomplete levels
+	 */
+	MekoLevel decode(byte[] compressed, int offset, int length, boolean storeData) throws ZipException, DataFormatException {
+		return decode(compressed, offset, length, storeData, false);
+	}
+
+	/**
+	 * Parse only the title and author of a zlib-compressed level. Inflation
+	 * stops after the author, and the blocks are inflated when first
+	 * accessed.
+	 * @param compressed compressed data
+	 * @param offset start of the zlib stream within compressed
+	 * @param length length of the zlib stream
+	 * @return a lazy level
+	 * @throws ZipException for invalid compressed data
+	 * @throws DataFormatException for incomplete headers
+	 * @see MekoLevel#isLazy()
+	 */
+	MekoLevel decodeHeader(byte[] compressed, int offset, int length) throws ZipException, DataFormatException {
+		return decode(compressed, offset, length, false, true);
+	}
+
+	private MekoLevel decode(byte[] compressed, int offset, int length, boolean storeData, boolean headerOnly) throws ZipException, DataFormatException {
+		ByteArrayOutputStream serialized = storeData ? new ByteArrayOutputStream(17*2+SIZE*SIZE*SIZE) : null;
+
+		String title = null;
+		String author = null;
+		int strLen = -1; // length of the current string, or -1 while reading the length
+		int strPos = 0;
+
+		short[] blocks = new short[SIZE*SIZE*SIZE];
+		int pos = 0;
+		BlockType parent = null; // waiting for a subtype
+		int unparsed = 0;
+		int total = 0;
+
+		Inflater inflater = ZlibPool.inflater();
+		try {
+			inflater.setInput(compressed, offset, length);
+			while(!inflater.finished()) {
+				int n = inflater.inflate(chunk);
+				if(n == 0) {
+					if(inflater.finished()) {
+						break;
+					}
+					if(inflater.needsDictionary()) {
+						throw new ZipException("Compressed data requires a preset dictionary");
+					}
+					if(inflater.needsInput()) {
+						throw new ZipException("Unexpected end of compressed data");
+					}
+					continue;
+				}
+				total += n;
+				if(total > MAX_UNCOMPRESSED) {
+					throw new ZipException(String.format("Uncompressed data exceeds %d bytes",MAX_UNCOMPRESSED));
+				}
+				if(serialized != null) {
+					serialized.write(chunk, 0, n);
+				}
+
+				for(int i=0;i<n;i++) {
+					byte val = chunk[i];
+					// Title & author
+					if(author == null) {
+						if(strLen < 0) {
+							strLen = val & 0xff;
+							strPos = 0;
+						} else {
+							text[strPos] = val;
+							strPos++;
+						}
+						if(strPos == strLen) {
+							String str = new String(text, 0, strLen, StandardCharsets.UTF_8);
+							if(title == null) {
+								title = str;
+							} else {
+								author = str;
+								if(headerOnly) {
+									byte[] stream = Arrays.copyOfRange(compressed, offset, offset+length);
+									return new MekoLevel(title, author, stream);
+								}
+							}
+							strLen = -1;
+						}
+						continue;
+					}
+					// Blocks
+					if(pos == blocks.length) {
+						unparsed++;
+						continue;
+					}
+					if(parent != null) {
+						BlockType blk = parent;
+						try {
+							blk = parent.getSubtype(val);
+						} catch(IllegalArgumentException e) {
+							logger.error(e.getMessage());
+						}
+						blocks[pos] = blk.getCode();
+						pos++;
+						parent = null;
+						continue;
+					}
+					BlockType blk = BlockType.fromByte(val);
+					if( blk.hasSubtypes() ) {
+						parent = blk;
+					} else {
+						blocks[pos] = blk.getCode();
+						pos++;
+					}
+				}
+			}
+		} catch (DataFormatException e) {
+			ZipException zip = new ZipException(e.getMessage());
+			zip.initCause(e);
+			throw zip;
+		} finally {
+			ZlibPool.release(inflater);
+		}
+
+		logger.debug("Decompressed {} bytes",total);
+
+		if(author == null) {
+			throw new DataFormatException(String.format("Malformed %s (%d bytes)",
+					title == null ? "title" : "author", strLen));
+		}
+		if(pos < blocks.length) {
+			throw new DataFormatException(String.format("Level data ends after %d blocks",pos));
+		}
+		if(unparsed > 0) {
+			logger.error("{} bytes were not parsed",unparsed);
+		}
+
+		MekoLevel level = new MekoLevel(title,author,blocks);
+		if(serialized != null) {
+			level.setSerializedData(serialized.toByteArray());
+		}
+		return level;
+	}
+}
@@ -0,0 +1,84 @@
+package us.bliven.mekoqr;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Image transformations for ZXing luminance sources which don't support
+ * them natively.
+ */
+final class LuminanceSources {
+	private LuminanceSources() {}
+
+	/**
+	 * Shrink an image by averaging blocks of pixels
+	 * @param source
+	 * @param factor block size
+	 * @return a new source, or the original if it is too small to shrink
+	 */
+	static LuminanceSource downscale(LuminanceSource source, int factor) {
+		int width = source.getWidth() / factor;
+		int height = source.getHeight() / factor;
+		if(factor < 2 || width < 1 || height < 1) {
+			return source;
+		}
+		int stride = source.getWidth();
+		byte[] matrix = source.getMatrix();
+		byte[] scaled = new byte[width*height];
+		int area = factor*factor;
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				int sum = 0;
+				for(int dy=0;dy<factor;dy++) {
+					int row = (y*factor+dy)*stride + x*factor;
+					for(int dx=0;dx<factor;dx++) {
+						sum += matrix[row+dx] & 0xff;
+					}
+				}
+				scaled[y*width+x] = (byte) (sum/area);
+			}
+		}
+		return new PlanarYUVLuminanceSource(scaled, width, height, 0, 0, width, height, false);
+	}
+
+	/**
+	 * Rotate an image by 90 degrees counterclockwise
+	 * @param source
+	 * @return
+	 */
+	static LuminanceSource rotate(LuminanceSource source) {
+		if(source.isRotateSupported()) {
+			return source.rotateCounterClockwise();
+		}
+		int width = source.getWidth();
+		int height = source.getHeight();
+		byte[] matrix = source.getMatrix();
+		byte[] rotated = new byte[width*height];
+		// new image is height wide and width high
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				rotated[(width-1-x)*height + y] = matrix[y*width + x];
+			}
+		}
+		return new PlanarYUVLuminanceSource(rotated, height, width, 0, 0, height, width, false);
+	}
+
+	/**
+	 * Crop to the central region of an image
+	 * @param source
+	 * @param fraction fraction of the width and height to keep
+	 * @return
+	 */
+	static LuminanceSource center(LuminanceSource source, double fraction) {
+		int width = (int) (source.getWidth()*fraction);
+		int height = (int) (source.getHeight()*fraction);
+		int left = (source.getWidth()-width)/2;
+		int top = (source.getHeight()-height)/2;
+		if(source.isCropSupported()) {
+			return source.crop(left, top, width, height);
+		}
+		byte[] matrix = source.getMatrix();
+		return new PlanarYUVLuminanceSource(matrix, source.getWidth(), source.getHeight(),
+				left, top, width, height, false);
+	}
+}
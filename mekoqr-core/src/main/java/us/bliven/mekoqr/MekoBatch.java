@@ -0,0 +1,232 @@
+package us.bliven.mekoqr;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import us.bliven.mekoqr.json.JsonTransformer;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.zxing.ChecksumException;
+import com.google.zxing.FormatException;
+import com.google.zxing.NotFoundException;
+
+/**
+ * Decodes many QR images in parallel, streaming one json record per
+ * input file (newline-delimited json).
+ *
+ * Successful records have the form <tt>{"file":..., "level":{...}}</tt>.
+ * Failures are reported inline as <tt>{"file":..., "error":...}</tt>.
+ * Records are written in order of completion, not input order.
+ */
+public class MekoBatch {
+	private static final Logger logger = LoggerFactory.getLogger(MekoBatch.class);
+
+	/** File extensions considered when expanding directories */
+	private static final List<String> IMAGE_EXTENSIONS = Arrays.asList("png","jpg","jpeg","gif","bmp");
+
+	private final int threads;
+	private final boolean storeRaw;
+	private final boolean storeData;
+
+	/**
+	 * @param threads Number of worker threads. Values &lt;1 use one per core.
+	 * @param storeRaw Include raw QR data in the output
+	 * @param storeData Include uncompressed level data in the output
+	 */
+	public MekoBatch(int threads, boolean storeRaw, boolean storeData) {
+		if(threads < 1) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		this.threads = threads;
+		this.storeRaw = storeRaw;
+		this.storeData = storeData;
+	}
+
+	/**
+	 * Decode all files matching the inputs
+	 * @param inputs Files, directories (searched recursively for images), or
+	 *  glob patterns (e.g. "shots/*.png")
+	 * @param out Output stream for the json records
+	 * @return Number of inputs which could not be decoded
+	 */
+	public int run(List<String> inputs, PrintStream out) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		MekoReaderPool readers = new MekoReaderPool(threads, storeRaw, storeData);
+		JsonTransformer json = new JsonTransformer(false);
+		AtomicInteger failures = new AtomicInteger();
+
+		try {
+			for(String input : inputs) {
+				List<Path> files;
+				try {
+					files = expand(input);
+				} catch (IOException | UncheckedIOException e) {
+					logger.error("Error listing {}",input,e);
+					emit(out, json, error(input, e));
+					failures.incrementAndGet();
+					continue;
+				}
+				if(files.isEmpty()) {
+					emit(out, json, error(input, "No matching files"));
+					failures.incrementAndGet();
+				}
+				for(Path file : files) {
+					executor.execute(() -> {
+						JsonObject record = decode(readers, json, file);
+						if(record.has("error")) {
+							failures.incrementAndGet();
+						}
+						emit(out, json, record);
+					});
+				}
+			}
+		} finally {
+			// Pool threads are not daemons, so always stop them
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				executor.shutdownNow();
+			}
+		}
+		return failures.get();
+	}
+
+	private static JsonObject decode(MekoReaderPool reader, JsonTransformer json, Path file) {
+		String filename = file.toString();
+		try {
+			MekoLevel level = reader.readQR(file.toFile());
+			JsonObject record = new JsonObject();
+			record.addProperty("file", filename);
+			record.add("level", json.toJsonTree(level));
+			return record;
+		} catch (NotFoundException e) {
+			logger.debug("No QR found in {}",filename);
+			return error(filename, "No QR found");
+		} catch (ChecksumException | FormatException | IOException | DataFormatException
+				| RuntimeException e) {
+			logger.debug("Error reading {}",filename,e);
+			return error(filename, e);
+		}
+	}
+
+	private static JsonObject error(String filename, Exception e) {
+		String msg = e.getMessage();
+		if(msg == null) {
+			msg = e.getClass().getSimpleName();
+		}
+		return error(filename, msg);
+	}
+	private static JsonObject error(String filename, String msg) {
+		JsonObject record = new JsonObject();
+		record.addProperty("file", filename);
+		record.addProperty("error", msg);
+		return record;
+	}
+
+	private static void emit(PrintStream out, JsonTransformer json, JsonElement record) {
+		String line = json.render(record);
+		synchronized(out) {
+			out.println(line);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Expand a command line argument into a list of files.
+	 *
+	 * Existing files are returned as-is. Directories are searched recursively
+	 * for images. Anything else is interpreted as a glob.
+	 * @param input file, directory, or glob
+	 * @return matching files. Nonexistent plain files are returned unchanged
+	 *  so that an error gets reported for them.
+	 * @throws IOException for errors listing a directory
+	 */
+	static List<Path> expand(String input) throws IOException {
+		try {
+			return expandPaths(input);
+		} catch(UncheckedIOException e) {
+			// Files.walk reports errors in subdirectories this way
+			throw e.getCause();
+		}
+	}
+	private static List<Path> expandPaths(String input) throws IOException {
+		input = Utils.expandUserHome(input);
+		if(!isGlob(input)) {
+			Path path = Paths.get(input);
+			if(Files.isDirectory(path)) {
+				try(Stream<Path> walk = Files.walk(path)) {
+					return walk.filter(Files::isRegularFile)
+							.filter(MekoBatch::isImage)
+							.sorted()
+							.collect(Collectors.toList());
+				}
+			}
+			List<Path> single = new ArrayList<>(1);
+			single.add(path);
+			return single;
+		}
+
+		// Search from the deepest directory without wildcards
+		String sep = FileSystems.getDefault().getSeparator();
+		String[] parts = input.split(sep.equals("\\") ? "\\\\" : sep, -1);
+		StringBuilder base = new StringBuilder();
+		int i = 0;
+		for(;i<parts.length-1 && !isGlob(parts[i]);i++) {
+			base.append(parts[i]).append(sep);
+		}
+		// Only ** can match across directories
+		int depth = input.contains("**") ? Integer.MAX_VALUE : parts.length - i;
+		Path root = Paths.get(base.length() == 0 ? "" : base.toString());
+		if(!Files.isDirectory(root)) {
+			return new ArrayList<>();
+		}
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+input);
+		try(Stream<Path> walk = Files.walk(root, depth)) {
+			return walk.filter(Files::isRegularFile)
+					.filter(matcher::matches)
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	static boolean isGlob(String input) {
+		for(char c : "*?[{".toCharArray()) {
+			if(input.indexOf(c) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isImage(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if(dot < 0) {
+			return false;
+		}
+		return IMAGE_EXTENSIONS.contains(name.substring(dot+1).toLowerCase(Locale.ROOT));
+	}
+}
@@ -25,8 +25,11 @@
 package us.bliven.mekoqr;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Objects;
 import java.util.zip.DataFormatException;
+import java.util.zip.ZipException;
  
 /**
  * Represents the contents of a Mekorama level.
@@ -54,10 +57,23 @@ public class MekoLevel {
 	
 	private String title;
 	private String author;
-	private BlockType[] data;
+	/** Block codes, as given by {@link BlockType#getCode()}. Null until a lazy level is inflated */
+	private volatile short[] data;
+	/** Compressed level for lazy decoding, or null once inflated */
+	private byte[] compressed;
+	/** Occupied positions, one bit per index into data. Counted before data is set */
+	private final long[] occupied = new long[SIZE*SIZE*SIZE/64];
+	/** Number of blocks in each plane of constant x, y or z */
+	private final int[] xCounts = new int[SIZE];
+	private final int[] yCounts = new int[SIZE];
+	private final int[] zCounts = new int[SIZE];
+	private int blockCount;
 	
+	/** Original payload and uncompressed level. Cleared when the level is modified */
 	private byte[] rawData;
 	private byte[] serializedData;
+	/** True if rawData is a level payload which the reader parsed successfully */
+	private boolean rawVerified;
 	
 	/** Maximum level size */
 	public static final int SIZE = 16;
@@ -73,9 +89,93 @@ public class MekoLevel {
 		}
 		this.title = title;
 		this.author = author;
-		this.data = data;
+		short[] codes = new short[data.length];
+		for(int i=0;i<data.length;i++) {
+			codes[i] = data[i].getCode();
+		}
+		count(codes);
+		this.data = codes;
+	}
+
+	/**
+	 * Create a level from block codes
+	 * @param title
+	 * @param author
+	 * @param codes Block codes, in the same order as data. Used directly (not copied).
+	 */
+	MekoLevel(String title, String author, short[] codes) {
+		if( codes.length != SIZE*SIZE*SIZE) {
+			throw new IllegalArgumentException("Wrong level size");
+		}
+		this.title = title;
+		this.author = author;
+		count(codes);
+		this.data = codes;
+	}
+
+	/**
+	 * Create a lazy level, whose blocks are inflated on first access
+	 * @param title
+	 * @param author
+	 * @param compressed zlib stream for the full level. Used directly (not copied).
+	 */
+	MekoLevel(String title, String author, byte[] compressed) {
+		this.title = title;
+		this.author = author;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Copy a level. Lazy levels stay lazy, sharing the compressed data.
+	 * @param other
+	 */
+	MekoLevel(MekoLevel other) {
+		this.title = other.title;
+		this.author = other.author;
+		short[] codes = other.data;
+		if(codes == null) {
+			this.compressed = other.compressed;
+		} else {
+			copyCounts(other);
+			this.data = codes.clone();
+		}
+		this.rawData = other.rawData;
+		this.serializedData = other.serializedData;
+		this.rawVerified = other.rawVerified;
+	}
+
+	/**
+	 * @return true if the blocks have not been inflated yet
+	 */
+	public boolean isLazy() {
+		return data == null;
+	}
+
+	/**
+	 * Get the block codes, inflating them first for lazy levels
+	 * @throws IllegalStateException if the compressed blocks are invalid
+	 */
+	private short[] codes() {
+		short[] codes = data;
+		if(codes == null) {
+			codes = inflate();
+		}
+		return codes;
+	}
+	private synchronized short[] inflate() {
+		if(data == null) {
+			try {
+				MekoLevel decoded = new LevelDecoder().decode(compressed, 0, compressed.length, false);
+				// Already counted by the decoded level's constructor
+				copyCounts(decoded);
+				data = decoded.data;
+			} catch (DataFormatException | ZipException e) {
+				throw new IllegalStateException("Invalid level data: "+e.getMessage(), e);
+			}
+			compressed = null;
+		}
+		return data;
 	}
-	
 
 
 	/**
@@ -86,16 +186,20 @@ public class MekoLevel {
 	 */
 	public BlockType getBlock(int x, int y, int z) {
 		int index = indexForBlock(x, y, z);
-		return data[index];
+		return BlockType.fromCode(codes()[index]);
 	}
 	public List<Block> getBlocks() {
-		List<Block> blocks = new ArrayList<>(SIZE*SIZE*SIZE);
+		short[] data = codes();
+		List<Block> blocks = new ArrayList<>(blockCount);
 		for(int y=0;y<SIZE;y++) {
+			if(yCounts[y] == 0) {
+				continue;
+			}
 			for(int z=0;z<SIZE;z++) {
 				for(int x=0;x<SIZE;x++) {
-					BlockType blk = getBlock(x, y, z);
-					if(blk != BlockType.AIR) {
-						blocks.add(new Block(blk,x,y,z));
+					short code = data[indexForBlock(x, y, z)];
+					if(code != 0) {
+						blocks.add(new Block(BlockType.fromCode(code),x,y,z));
 					}
 				}
 			}
@@ -104,7 +208,97 @@ public class MekoLevel {
 	}
 	public void setBlock(int x, int y, int z,BlockType blk) {
 		int index = indexForBlock(x, y, z);
-		data[index] = blk;
+		short[] codes = codes();
+		short code = blk.getCode();
+		short old = codes[index];
+		if(old != code) {
+			codes[index] = code;
+			if(old == 0) {
+				occupy(index);
+			} else if(code == 0) {
+				vacate(index);
+			}
+			modified();
+		}
+	}
+
+	/**
+	 * Direct access to the block codes, indexed by z,y,x (x varying fastest).
+	 * Callers modifying the array are responsible for keeping the level
+	 * consistent by calling {@link #codesModified()}.
+	 * @return
+	 */
+	short[] getCodes() {
+		return codes();
+	}
+
+	/**
+	 * Invalidate the stored payload after the level changes, since it no
+	 * longer matches the blocks
+	 */
+	void modified() {
+		rawData = null;
+		serializedData = null;
+		rawVerified = false;
+	}
+
+	/**
+	 * Update the level after the codes array was edited directly
+	 */
+	void codesModified() {
+		count(codes());
+		modified();
+	}
+
+	/**
+	 * Rebuild the occupancy bits and counts
+	 */
+	private void count(short[] codes) {
+		Arrays.fill(occupied, 0L);
+		Arrays.fill(xCounts, 0);
+		Arrays.fill(yCounts, 0);
+		Arrays.fill(zCounts, 0);
+		blockCount = 0;
+		for(int i=0;i<codes.length;i++) {
+			if(codes[i] != 0) {
+				occupy(i);
+			}
+		}
+	}
+	private void copyCounts(MekoLevel from) {
+		System.arraycopy(from.occupied, 0, occupied, 0, occupied.length);
+		System.arraycopy(from.xCounts, 0, xCounts, 0, SIZE);
+		System.arraycopy(from.yCounts, 0, yCounts, 0, SIZE);
+		System.arraycopy(from.zCounts, 0, zCounts, 0, SIZE);
+		blockCount = from.blockCount;
+	}
+	private void occupy(int index) {
+		occupied[index >>> 6] |= 1L << index;
+		xCounts[index & 0xf]++;
+		yCounts[(index >> 4) & 0xf]++;
+		zCounts[index >> 8]++;
+		blockCount++;
+	}
+	private void vacate(int index) {
+		occupied[index >>> 6] &= ~(1L << index);
+		xCounts[index & 0xf]--;
+		yCounts[(index >> 4) & 0xf]--;
+		zCounts[index >> 8]--;
+		blockCount--;
+	}
+
+	/**
+	 * @return number of non-air blocks
+	 */
+	public int getBlockCount() {
+		codes(); // inflate lazy levels
+		return blockCount;
+	}
+	/**
+	 * @return true if the level contains only air
+	 */
+	public boolean isEmpty() {
+		return getBlockCount() == 0;
 	}
 	
 	/**
@@ -138,13 +332,19 @@ public class MekoLevel {
 	}
 
 	public void setTitle(String title) {
-		this.title = title;
+		if(!Objects.equals(this.title, title)) {
+			this.title = title;
+			modified();
+		}
 	}
 
 
 
 	public void setAuthor(String author) {
-		this.author = author;
+		if(!Objects.equals(this.author, author)) {
+			this.author = author;
+			modified();
+		}
 	}
 
 
@@ -222,28 +422,23 @@ public class MekoLevel {
 	 * @return a length-6 array with [minX,maxX, minY,maxY, minZ,maxZ]
 	 */
 	public int[] getBounds() {
-		int minX = SIZE;
-		int maxX = 0;
-		int minY = SIZE;
-		int maxY = 0;
-		int minZ = SIZE;
-		int maxZ = 0;
-		for(int y=0;y<SIZE;y++) {
-			for(int z=0;z<SIZE;z++) {
-				for(int x=0;x<SIZE;x++) {
-					BlockType blk = getBlock(x, y, z);
-					if(blk != BlockType.AIR) {
-						if(minX > x) minX = x;
-						if(maxX < x) maxX = x;
-						if(minY > y) minY = y;
-						if(maxY < y) maxY = y;
-						if(minZ > z) minZ = z;
-						if(maxZ < z) maxZ = z;
-					}
-				}
-			}
+		if(isEmpty()) {
+			return new int[] {SIZE,0, SIZE,0, SIZE,0};
 		}
-		return new int[] {minX,maxX,minY,maxY,minZ,maxZ};
+		return new int[] {
+				first(xCounts), last(xCounts),
+				first(yCounts), last(yCounts),
+				first(zCounts), last(zCounts)};
+	}
+	private static int first(int[] counts) {
+		int i = 0;
+		while(counts[i] == 0) i++;
+		return i;
+	}
+	private static int last(int[] counts) {
+		int i = counts.length - 1;
+		while(counts[i] == 0) i--;
+		return i;
 	}
 
 
@@ -255,9 +450,12 @@ public class MekoLevel {
 	 */
 	private String getSparseData() {
 		StringBuffer buf = new StringBuffer();
-		for(int i=0;i<data.length;i++) {
-			if(this.data[i] != BlockType.AIR) {
-				BlockType blk = this.data[i];
+		short[] data = codes();
+		for(int w=0;w<occupied.length;w++) {
+			// Visit set bits in index order
+			for(long bits = occupied[w]; bits != 0; bits &= bits - 1) {
+				int i = w << 6 | Long.numberOfTrailingZeros(bits);
+				BlockType blk = BlockType.fromCode(data[i]);
 				buf.append(String.format("%03x:%s%n",i/*getX(i),getY(i),getZ(i)*/,blk.getName()));
 			}
 		}
@@ -266,6 +464,10 @@ public class MekoLevel {
 
 
 
+	/**
+	 * @return the QR payload this level was read from, or null if it was not
+	 *  stored or the level has been modified since
+	 */
 	public byte[] getRawData() {
 		return rawData;
 	}
@@ -273,7 +475,27 @@ public class MekoLevel {
 
 
 	public void setRawData(byte[] rawData) {
+		setRawData(rawData, false);
+	}
+	/**
+	 * @param verified true if rawData is a level payload that was parsed
+	 *  into this level, so it can be written out again unchanged
+	 */
+	void setRawData(byte[] rawData, boolean verified) {
 		this.rawData = rawData;
+		this.rawVerified = verified;
+	}
+	/**
+	 * Get the payload this level was parsed from, if it still matches the
+	 * level. Lazy levels are inflated first, so that the blocks are checked too.
+	 * @return the payload, or null if it is missing, unverified, or outdated
+	 */
+	byte[] getVerifiedPayload() {
+		if(!rawVerified) {
+			return null;
+		}
+		codes();
+		return rawData;
 	}
 
 
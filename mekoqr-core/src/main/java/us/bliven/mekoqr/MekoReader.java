@@ -1,23 +1,40 @@
 package us.bliven.mekoqr;
 
-import static us.bliven.mekoqr.MekoLevel.SIZE;
-
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipException;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,30 +48,55 @@ import org.slf4j.LoggerFactory;
 
 import us.bliven.mekoqr.json.JsonTransformer;
 
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.BinaryBitmap;
 import com.google.zxing.ChecksumException;
-import com.google.zxing.DecodeHintType;
 import com.google.zxing.FormatException;
 import com.google.zxing.LuminanceSource;
 import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
 import com.google.zxing.Result;
 import com.google.zxing.ResultMetadataType;
 import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
-import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.qrcode.QRCodeMultiReader;
 import com.google.zxing.qrcode.QRCodeReader;
 
 /**
  * Class to read in Mekorama level QR codes
+ * 
+ * MekoReader is not thread-safe. Each instance reuses its QR reader and
+ * decoding buffers between calls, so use one instance per thread or
+ * share a {@link MekoReaderPool}.
  * @author blivens
  *
  */
 public class MekoReader {
 	private static final Logger logger = LoggerFactory.getLogger(MekoReader.class);
+	/** Default detection strategies, tried in order */
+	public static final List<DetectionTier> DEFAULT_TIERS = Collections.unmodifiableList(
+			Arrays.asList(DetectionTier.HYBRID, DetectionTier.TRY_HARDER));
+
 	private QRCodeReader reader;
-	private Map<DecodeHintType, Object> hints;
+	private QRCodeMultiReader multiReader;
+	private volatile List<DetectionTier> tiers = DEFAULT_TIERS;
+	private final AtomicLongArray tierCounts = new AtomicLongArray(DetectionTier.values().length);
+	private DetectionTier lastTier;
+	private volatile ForkJoinPool racePool = null;
 	private boolean storeRaw;
 	private boolean storeData;
+	private LevelDecoder decoder;
+	private PngDecoder pngDecoder;
+	private int maxImageSize = DEFAULT_MAX_IMAGE_SIZE;
+	private boolean lazy = false;
+
+	/** Header preceding the zlib stream in level payloads */
+	static final byte[] HEADER = {0x01, 0x13, 0x0D, (byte) 0xFC};
+	/** Shortest possible zlib stream: 2-byte header, empty block, adler32 */
+	private static final int MIN_ZLIB_LENGTH = 8;
+	/** First byte of a zlib stream using DEFLATE with a 32K window */
+	private static final byte ZLIB_DEFLATE = 0x78;
+
+	/** Default maximum image dimension. Plenty for QR codes filling a fraction of a phone photo */
+	public static final int DEFAULT_MAX_IMAGE_SIZE = 2048;
 
 	public MekoReader() {
 		this(false,false);
@@ -63,47 +105,416 @@ public class MekoReader {
 	public MekoReader(boolean storeRaw, boolean storeData) {
 		this.storeRaw = storeRaw;
 		this.storeData = storeData;
+		decoder = new LevelDecoder();
+		pngDecoder = new PngDecoder();
 		reader = new QRCodeReader();
-		hints = new HashMap<>();
-		hints.put(DecodeHintType.POSSIBLE_FORMATS, Arrays.asList(BarcodeFormat.QR_CODE));
-		hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+	}
+
+	/**
+	 * Set the detection strategies. Each is tried in order until one
+	 * succeeds, so cheaper strategies should come first.
+	 * @param tiers
+	 */
+	public void setTiers(DetectionTier... tiers) {
+		if(tiers.length < 1) {
+			throw new IllegalArgumentException("At least one detection tier required");
+		}
+		this.tiers = Collections.unmodifiableList(Arrays.asList(tiers.clone()));
+	}
+	public List<DetectionTier> getTiers() {
+		return tiers;
+	}
+	/**
+	 * Race all detection tiers in parallel instead of trying them in turn.
+	 * The first tier to succeed wins and tiers which have not started yet are
+	 * cancelled. This lowers latency for hard images at the cost of extra CPU,
+	 * and is most useful with a broad set of tiers, e.g.
+	 * <tt>setTiers(DetectionTier.values())</tt>.
+	 * @param pool Pool to run tiers on, or null to try tiers sequentially
+	 */
+	public void setRacePool(ForkJoinPool pool) {
+		this.racePool = pool;
+	}
+	public ForkJoinPool getRacePool() {
+		return racePool;
+	}
+	/**
+	 * @return The tier which found the most recent QR code, or null
+	 */
+	public DetectionTier getLastTier() {
+		return lastTier;
+	}
+	/**
+	 * Get the number of QR codes found by each tier
+	 * @return counts for all tiers (including unused ones)
+	 */
+	public Map<DetectionTier, Long> getTierCounts() {
+		Map<DetectionTier, Long> counts = new EnumMap<>(DetectionTier.class);
+		for(DetectionTier tier : DetectionTier.values()) {
+			counts.put(tier, tierCounts.get(tier.ordinal()));
+		}
+		return counts;
 	}
 
 
 	public MekoLevel readQR(File file) throws NotFoundException, ChecksumException, FormatException, IOException, DataFormatException {
 		byte[] raw = readQRraw(file);
-		MekoLevel level = createLevel(raw);
-		if(storeRaw) {
-			level.setRawData(raw);
-		}
-		return level;
+		return toLevel(raw);
 	}
 	public MekoLevel readQR(InputStream is) throws NotFoundException, ChecksumException, FormatException, IOException, DataFormatException {
 		byte[] raw = readQRraw(is);
-		MekoLevel level = createLevel(raw);
+		return toLevel(raw);
+	}
+	/**
+	 * Read a level from a raw 8-bit luminance plane, such as a grayscale
+	 * camera frame. The array is used in place, without copying.
+	 *
+	 * NV21 and other YUV 4:2:0 frames can be passed whole, since the Y plane
+	 * comes first; use the frame width as the stride and the frame height
+	 * as the number of rows.
+	 * @param luminance pixel data, one byte per pixel
+	 * @param stride bytes per row
+	 * @param rows number of rows in the data
+	 * @param left left edge of the region to search
+	 * @param top top edge of the region to search
+	 * @param width width of the region to search
+	 * @param height height of the region to search
+	 */
+	public MekoLevel readQR(byte[] luminance, int stride, int rows, int left, int top, int width, int height) throws NotFoundException, ChecksumException, FormatException, DataFormatException, ZipException {
+		return readQR(new PlanarYUVLuminanceSource(luminance, stride, rows, left, top, width, height, false));
+	}
+	/**
+	 * Read a level from a full, unpadded luminance plane
+	 * @see #readQR(byte[], int, int, int, int, int, int)
+	 */
+	public MekoLevel readQR(byte[] luminance, int width, int height) throws NotFoundException, ChecksumException, FormatException, DataFormatException, ZipException {
+		return readQR(luminance, width, height, 0, 0, width, height);
+	}
+	/**
+	 * Read a level from a raw 8-bit luminance plane in a buffer, which may be
+	 * direct. Data starts at the buffer's current position; the position and
+	 * limit are not modified.
+	 * @see #readQR(byte[], int, int, int, int, int, int)
+	 */
+	public MekoLevel readQR(ByteBuffer luminance, int stride, int left, int top, int width, int height) throws NotFoundException, ChecksumException, FormatException, DataFormatException, ZipException {
+		LuminanceSource source;
+		if(luminance.hasArray() && luminance.arrayOffset() + luminance.position() == 0) {
+			int rows = Math.min(luminance.limit(), luminance.array().length) / stride;
+			source = new PlanarYUVLuminanceSource(luminance.array(), stride, rows, left, top, width, height, false);
+		} else {
+			source = new ByteBufferLuminanceSource(luminance, stride, left, top, width, height);
+		}
+		return readQR(source);
+	}
+	/**
+	 * Read a level from a full, unpadded luminance plane in a buffer
+	 * @see #readQR(ByteBuffer, int, int, int, int, int)
+	 */
+	public MekoLevel readQR(ByteBuffer luminance, int width, int height) throws NotFoundException, ChecksumException, FormatException, DataFormatException, ZipException {
+		return readQR(luminance, width, 0, 0, width, height);
+	}
+	/**
+	 * Read a level from any ZXing luminance source
+	 */
+	public MekoLevel readQR(LuminanceSource source) throws NotFoundException, ChecksumException, FormatException, DataFormatException, ZipException {
+		byte[] raw = readQRraw(source);
+		return toLevel(raw);
+	}
+	
+	/**
+	 * Build a level from a QR payload which has already been extracted,
+	 * such as the rawData of a serialized level. No image decoding is done.
+	 * @param payload Raw QR bytes, starting either with the 4-byte level
+	 *  header or directly with the zlib stream
+	 * @return the level
+	 * @throws DataFormatException if the payload is not a Mekorama level
+	 */
+	public MekoLevel readPayload(byte[] payload) throws DataFormatException, ZipException {
+		if(payload.length < 1 || payload[0] != ZLIB_DEFLATE) {
+			if(payload.length < HEADER.length + MIN_ZLIB_LENGTH) {
+				throw new DataFormatException("Payload too short for a Mekorama level");
+			}
+			if(!hasHeader(payload)) {
+				throw new DataFormatException("Payload does not start with the level header 01130DFC");
+			}
+			return toLevel(payload);
+		}
+		if(payload.length < MIN_ZLIB_LENGTH) {
+			throw new DataFormatException("Payload too short for a Mekorama level");
+		}
+		// Bare zlib stream
+		MekoLevel level = createLevel(payload, 0, decoder);
 		if(storeRaw) {
-			level.setRawData(raw);
+			byte[] raw = new byte[HEADER.length + payload.length];
+			System.arraycopy(HEADER, 0, raw, 0, HEADER.length);
+			System.arraycopy(payload, 0, raw, HEADER.length, payload.length);
+			level.setRawData(raw, true);
 		}
 		return level;
+	}
+	/**
+	 * Build a level from a hex-encoded payload. Whitespace is ignored.
+	 * @see #readPayload(byte[])
+	 */
+	public MekoLevel readPayloadHex(String hex) throws DataFormatException, ZipException {
+		byte[] payload;
+		try {
+			payload = Utils.hexToBytes(hex);
+		} catch(IllegalArgumentException e) {
+			throw new DataFormatException("Invalid hex payload");
+		}
+		return readPayload(payload);
+	}
+	/**
+	 * Build a level from a base64-encoded payload. Line breaks are ignored.
+	 * @see #readPayload(byte[])
+	 */
+	public MekoLevel readPayloadBase64(String base64) throws DataFormatException, ZipException {
+		byte[] payload;
+		try {
+			payload = Base64.getMimeDecoder().decode(base64);
+		} catch(IllegalArgumentException e) {
+			throw new DataFormatException("Invalid base64 payload");
+		}
+		return readPayload(payload);
+	}
 
+	/**
+	 * Read every level in an image, such as a contact sheet or screenshot
+	 * containing many codes.
+	 *
+	 * Detection tiers are tried in order until one finds at least one code.
+	 * Duplicate payloads are dropped, as are QR codes which are not Mekorama
+	 * levels. Payloads are parsed in parallel, on the race pool if one is set.
+	 * @return Levels in detection order. Empty if none of the codes are levels.
+	 * @throws NotFoundException No QR codes found by any tier
+	 */
+	public List<MekoLevel> readAllQR(File file) throws NotFoundException, IOException {
+		return readAllQR(readSource(file));
 	}
-	
+	/**
+	 * @see #readAllQR(File)
+	 */
+	public List<MekoLevel> readAllQR(InputStream is) throws NotFoundException, IOException {
+		return readAllQR(readSource(is));
+	}
+	/**
+	 * @see #readAllQR(File)
+	 */
+	public List<MekoLevel> readAllQR(LuminanceSource source) throws NotFoundException {
+		Result[] results = decodeMultiple(source);
+
+		// Deduplicate by content
+		Set<ByteBuffer> unique = new LinkedHashSet<>();
+		for(Result result : results) {
+			unique.add(ByteBuffer.wrap(getPayload(result)));
+		}
+		logger.debug("Found {} QR codes with {} distinct payloads",results.length,unique.size());
+
+		List<byte[]> payloads = new ArrayList<>(unique.size());
+		for(ByteBuffer payload : unique) {
+			payloads.add(payload.array());
+		}
+		List<MekoLevel> levels = new ArrayList<>(payloads.size());
+		if(payloads.size() == 1) {
+			MekoLevel level = tryLevel(payloads.get(0), decoder);
+			if(level != null) {
+				levels.add(level);
+			}
+			return levels;
+		}
+
+		// LevelDecoder is not thread-safe, so each payload gets its own
+		ForkJoinPool pool = racePool;
+		if(pool == null) {
+			pool = ForkJoinPool.commonPool();
+		}
+		List<ForkJoinTask<MekoLevel>> tasks = new ArrayList<>(payloads.size());
+		for(byte[] payload : payloads) {
+			tasks.add(pool.submit(() -> tryLevel(payload, new LevelDecoder())));
+		}
+		for(ForkJoinTask<MekoLevel> task : tasks) {
+			MekoLevel level = task.join();
+			if(level != null) {
+				levels.add(level);
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Locate all QR codes, trying each tier until one finds something
+	 */
+	private Result[] decodeMultiple(LuminanceSource source) throws NotFoundException {
+		if(multiReader == null) {
+			multiReader = new QRCodeMultiReader();
+		}
+		for(DetectionTier tier : tiers) {
+			try {
+				Result[] results = multiReader.decodeMultiple(tier.bitmap(source), tier.getHints());
+				if(results.length > 0) {
+					tierCounts.incrementAndGet(tier.ordinal());
+					lastTier = tier;
+					logger.debug("{} QR codes found by {} tier",results.length,tier);
+					return results;
+				}
+			} catch(NotFoundException e) {
+				// escalate to the next tier
+			} finally {
+				multiReader.reset();
+			}
+		}
+		throw NotFoundException.getNotFoundInstance();
+	}
+
+	/**
+	 * Parse a payload, returning null if it is not a level
+	 */
+	private MekoLevel tryLevel(byte[] raw, LevelDecoder decoder) {
+		try {
+			MekoLevel level = createLevel(raw, decoder);
+			storeRaw(level, raw);
+			return level;
+		} catch(DataFormatException | ZipException e) {
+			logger.info("Skipping QR code which is not a Mekorama level: {}",e.getMessage());
+			return null;
+		}
+	}
+
 	/**
 	 * Read binary data from a QR code.
-	 * @param file Image containing the QR code
+	 * @param source Image containing the QR code
 	 * @return binary data
 	 * @throws NotFoundException QR code not detected in the image
 	 * @throws ChecksumException Too many QR read errors
 	 * @throws FormatException Illegal QR code or miss-detected code
-	 * @throws IOException Error reading image file
 	 */
-	private byte[] readQRraw(BufferedImage image) throws NotFoundException, ChecksumException, FormatException, IOException {
-		// creating binary bitmap from source image
-	    LuminanceSource lumSource = new BufferedImageLuminanceSource(image);
-	    BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(lumSource));
+	private byte[] readQRraw(LuminanceSource source) throws NotFoundException, ChecksumException, FormatException {
+		Result result = decode(source);
+		return getPayload(result);
+	}
 
-		Result result = reader.decode(bitmap,hints);
-		
+	/**
+	 * Locate and decode a QR code, trying each tier in turn until one succeeds
+	 * @param source
+	 * @return
+	 * @throws NotFoundException QR code not detected by any tier
+	 * @throws ChecksumException Too many QR read errors in the last tier
+	 * @throws FormatException Illegal QR code in the last tier
+	 */
+	Result decode(LuminanceSource source) throws NotFoundException, ChecksumException, FormatException {
+		ForkJoinPool pool = racePool;
+		if(pool != null) {
+			return race(source, pool);
+		}
+		ReaderException error = null;
+		for(DetectionTier tier : tiers) {
+			try {
+				Result result = reader.decode(tier.bitmap(source), tier.getHints());
+				tierCounts.incrementAndGet(tier.ordinal());
+				lastTier = tier;
+				logger.debug("QR code found by {} tier",tier);
+				return result;
+			} catch(NotFoundException | ChecksumException | FormatException e) {
+				// escalate to the next tier
+				error = e;
+			} finally {
+				reader.reset();
+			}
+		}
+		throw rethrow(error);
+	}
+
+	/**
+	 * Run all tiers in parallel, returning the first success
+	 * @see #setRacePool(ForkJoinPool)
+	 */
+	private Result race(LuminanceSource source, ForkJoinPool pool) throws NotFoundException, ChecksumException, FormatException {
+		List<DetectionTier> tiers = this.tiers;
+		CompletableFuture<Result> winner = new CompletableFuture<>();
+		AtomicReference<DetectionTier> winningTier = new AtomicReference<>();
+		AtomicReference<ReaderException> error = new AtomicReference<>();
+		AtomicReference<RuntimeException> failure = new AtomicReference<>();
+		AtomicInteger remaining = new AtomicInteger(tiers.size());
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(tiers.size());
+
+		for(DetectionTier tier : tiers) {
+			tasks.add(pool.submit(() -> {
+				try {
+					if(winner.isDone()) {
+						return;
+					}
+					// QRCodeReader is not thread-safe, so each tier gets its own
+					Result result = new QRCodeReader().decode(tier.bitmap(source), tier.getHints());
+					if(winningTier.compareAndSet(null, tier)) {
+						winner.complete(result);
+					}
+				} catch(NotFoundException e) {
+					error.compareAndSet(null, e);
+				} catch(ChecksumException | FormatException e) {
+					// More informative than NotFound
+					error.set(e);
+				} catch(RuntimeException e) {
+					// Other tiers may still succeed
+					logger.warn("Error in {} tier",tier,e);
+					failure.compareAndSet(null, e);
+				} finally {
+					if(remaining.decrementAndGet() == 0) {
+						Exception e = error.get();
+						if(e == null) {
+							e = failure.get();
+						}
+						winner.completeExceptionally(e != null ? e : NotFoundException.getNotFoundInstance());
+					}
+				}
+			}));
+		}
+
+		try {
+			Result result = winner.join();
+			DetectionTier tier = winningTier.get();
+			tierCounts.incrementAndGet(tier.ordinal());
+			lastTier = tier;
+			logger.debug("QR code found by {} tier",tier);
+			return result;
+		} catch(CompletionException e) {
+			// Throw the same exceptions as the sequential path
+			Throwable cause = e.getCause();
+			if(cause instanceof ReaderException) {
+				throw rethrow((ReaderException) cause);
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw e;
+		} finally {
+			for(ForkJoinTask<?> task : tasks) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Narrow a ReaderException to one of the declared types
+	 * @param error
+	 * @return an exception to throw
+	 */
+	private static NotFoundException rethrow(ReaderException error) throws ChecksumException, FormatException {
+		if(error instanceof ChecksumException) {
+			throw (ChecksumException) error;
+		}
+		if(error instanceof FormatException) {
+			throw (FormatException) error;
+		}
+		return NotFoundException.getNotFoundInstance();
+	}
+
+	/**
+	 * Extract the binary data from a decoded QR code
+	 * @param result
+	 * @return binary data
+	 */
+	static byte[] getPayload(Result result) {
 //		logger.info("Length: {}",result.getNumBits()/8.);
 //		logger.info("Meta: {}",result.getResultMetadata());
 		if(result.getResultMetadata().containsKey(ResultMetadataType.BYTE_SEGMENTS)) {
@@ -138,125 +549,231 @@ public class MekoReader {
 		}
 	}
 	private byte[] readQRraw(File file) throws NotFoundException, ChecksumException, FormatException, IOException {
-		BufferedImage image = ImageIO.read(file);
-		return readQRraw(image);
+		return readQRraw(readSource(file));
 	}
 	private byte[] readQRraw(InputStream is) throws NotFoundException, ChecksumException, FormatException, IOException {
-		BufferedImage image = ImageIO.read(is);
-		return readQRraw(image);
+		return readQRraw(readSource(is));
 	}
-	
-	private MekoLevel createLevel(byte[] raw) throws DataFormatException, ZipException, IOException {
-		byte[] b = Arrays.copyOfRange(raw, 4, raw.length);
 
-		// Level consists of two strings (1 + 16 bytes) and the blocks, which can be 1 or 2 bytes
-		byte[] uncompressed = new byte[17*2+SIZE*SIZE*SIZE*2];
-		int len = MekoReader.inflate(b,b.length,uncompressed);
-		
-		if(logger.isDebugEnabled()) {
-			String hex = Utils.bytesToHex(uncompressed);
-			logger.debug("Decompressed {} bytes starting with {}{}",len, hex.substring(0, Math.min(len, 30)),len>30?"...":"");
+	private LuminanceSource readSource(File file) throws IOException {
+		if(!file.canRead()) {
+			throw new FileNotFoundException(file.getPath());
 		}
-
-		// Parse data
-		
-		int pos = 0;
-		
-		// Title
-		int titleLen = uncompressed[pos];
-		pos += 1;
-		String title;
-		try {
-			title = new String(uncompressed,pos,titleLen,"UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new DataFormatException(String.format("Malformed title (%d bytes)",titleLen));
+		LuminanceSource png;
+		try(InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+			png = pngDecoder.decode(is, maxImageSize);
 		}
-		pos += titleLen;
-		
-		// Author
-		int authorLen = uncompressed[pos];
-		pos += 1;
-		String author;
-		try {
-			author = new String(uncompressed,pos,authorLen,"UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			throw new DataFormatException(String.format("Malformed author (%d bytes)",authorLen));
+		if(png != null) {
+			return png;
 		}
-		pos += authorLen;
-		
-		BlockType[] data = new BlockType[SIZE*SIZE*SIZE];
-		pos += parseData(uncompressed, pos, len, data);
-		
-		if(pos != len) {
-			logger.error("{} bytes were not parsed: {}",len-pos,Arrays.copyOfRange(uncompressed, pos, len));
+		BufferedImage image = readImage(file);
+		return new BufferedImageLuminanceSource(image);
+	}
+	private LuminanceSource readSource(InputStream is) throws IOException {
+		if(!is.markSupported()) {
+			is = new BufferedInputStream(is);
 		}
-		
-		MekoLevel level = new MekoLevel(title,author,data);
-		if(storeData) {
-			level.setSerializedData(Arrays.copyOfRange(uncompressed, 0, len));
+		is.mark(PngDecoder.HEADER_LENGTH);
+		LuminanceSource png = pngDecoder.decode(is, maxImageSize);
+		if(png != null) {
+			return png;
+		}
+		// Not a PNG we handle; let ImageIO try
+		is.reset();
+		BufferedImage image = readImage(is);
+		return new BufferedImageLuminanceSource(image);
+	}
+
+	/**
+	 * Read an image, subsampling during decoding if it is larger than
+	 * the maximum image size.
+	 * @param input File or InputStream
+	 * @return
+	 * @throws IOException for unreadable or unrecognized images
+	 */
+	private BufferedImage readImage(Object input) throws IOException {
+		try(ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+			if(iis == null) {
+				throw new IOException("Unable to read image");
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if(!readers.hasNext()) {
+				throw new IOException("Unrecognized image format");
+			}
+			ImageReader imageReader = readers.next();
+			try {
+				imageReader.setInput(iis, true, true);
+				ImageReadParam param = imageReader.getDefaultReadParam();
+				// Only reads the header
+				int width = imageReader.getWidth(0);
+				int height = imageReader.getHeight(0);
+				int sub = getSubsampling(width, height);
+				if(sub > 1) {
+					logger.debug("Subsampling {}x{} image by {}",width,height,sub);
+					param.setSourceSubsampling(sub, sub, 0, 0);
+				}
+				return imageReader.read(0, param);
+			} finally {
+				imageReader.dispose();
+			}
 		}
+	}
+
+	/**
+	 * @return Subsampling factor needed to fit an image within maxImageSize
+	 */
+	private int getSubsampling(int width, int height) {
+		int size = Math.max(width, height);
+		if(maxImageSize <= 0 || size <= maxImageSize) {
+			return 1;
+		}
+		return (size + maxImageSize - 1) / maxImageSize;
+	}
+
+	/**
+	 * Lazy levels parse only the title and author up front; blocks are
+	 * inflated on first access. This makes listing and indexing large
+	 * collections much cheaper. Ignored when storing serialized data, which
+	 * requires inflating everything.
+	 * <p>
+	 * Since blocks are parsed later, corrupt block data is reported by
+	 * MekoLevel methods as an IllegalStateException rather than by readQR.
+	 * @param lazy
+	 * @see MekoLevel#isLazy()
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * Images larger than this (in either dimension) are subsampled while
+	 * being read, which bounds the memory needed per decode.
+	 * @param maxImageSize maximum size in pixels, or 0 to read images at full resolution
+	 */
+	public void setMaxImageSize(int maxImageSize) {
+		this.maxImageSize = maxImageSize;
+	}
+	public int getMaxImageSize() {
+		return maxImageSize;
+	}
+	
+	/**
+	 * Parse a QR payload, storing the raw data if requested
+	 */
+	MekoLevel toLevel(byte[] raw) throws DataFormatException, ZipException {
+		MekoLevel level = createLevel(raw);
+		storeRaw(level, raw);
 		return level;
 	}
+
+	/**
+	 * Store the raw data if requested. Only payloads with the level header
+	 * are reused by {@link MekoWriter}; raw QR codewords from the fallback
+	 * in {@link #getPayload(Result)} are kept for diagnostics only.
+	 */
+	private void storeRaw(MekoLevel level, byte[] raw) {
+		if(storeRaw) {
+			level.setRawData(raw, hasHeader(raw));
+		}
+	}
+	private static boolean hasHeader(byte[] raw) {
+		if(raw.length < HEADER.length + MIN_ZLIB_LENGTH) {
+			return false;
+		}
+		for(int i=0;i<HEADER.length;i++) {
+			if(raw[i] != HEADER[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private MekoLevel createLevel(byte[] raw) throws DataFormatException, ZipException {
+		return createLevel(raw, decoder);
+	}
+	private MekoLevel createLevel(byte[] raw, LevelDecoder decoder) throws DataFormatException, ZipException {
+		if(raw.length < 4) {
+			throw new DataFormatException("Not a Mekorama level");
+		}
+		// Skip the 4-byte header
+		return createLevel(raw, 4, decoder);
+	}
+	/**
+	 * @param offset start of the zlib stream within raw
+	 */
+	private MekoLevel createLevel(byte[] raw, int offset, LevelDecoder decoder) throws DataFormatException, ZipException {
+		if(lazy && !storeData) {
+			return decoder.decodeHeader(raw, offset, raw.length-offset);
+		}
+		return decoder.decode(raw, offset, raw.length-offset, storeData);
+	}
 	
 	/**
 	 * Uncompress a DEFLATE data stream
 	 * @param compressed input compressed data
 	 * @param uncompressed output array. Must be large enough
 	 * @return length of uncompressed used
-	 * @throws IOException 
-	 * @throws ZipException 
+	 * @throws ZipException if the data is invalid or does not fit in uncompressed
 	 */
-	static int inflate(byte[] compressed, int compressedlen, byte[] uncompressed) throws ZipException, IOException {
-		return inflate(compressed,0,compressedlen,uncompressed);
+	static int inflate(byte[] compressed, int compressedlen, byte[] uncompressed) throws ZipException {
+		return inflate(compressed,0,compressedlen,uncompressed,uncompressed.length);
 	}
-	static int inflate(byte[] compressed, int offset, int compressedlen, byte[] uncompressed) throws ZipException, IOException {
-		try( InflaterInputStream inStream = new InflaterInputStream(new ByteArrayInputStream( compressed ) ) ) {
-			int len = offset;
-		    int readByte;
-		    while((readByte = inStream.read()) != -1) {
-		    	uncompressed[len] = (byte)readByte;
-		    	len++;
-		    }
-		    return len; 
+	/**
+	 * Uncompress a zlib-wrapped DEFLATE data stream directly into the output buffer
+	 * @param compressed input compressed data
+	 * @param offset start of the zlib stream within compressed
+	 * @param compressedlen length of the zlib stream
+	 * @param uncompressed output array
+	 * @param limit maximum number of bytes to write to uncompressed
+	 * @return length of uncompressed used
+	 * @throws ZipException if the data is invalid, truncated, or would
+	 *  uncompress to more than limit bytes
+	 */
+	static int inflate(byte[] compressed, int offset, int compressedlen, byte[] uncompressed, int limit) throws ZipException {
+		Inflater inflater = ZlibPool.inflater();
+		try {
+			inflater.setInput(compressed, offset, compressedlen);
+			int len = 0;
+			while(!inflater.finished()) {
+				int n = inflater.inflate(uncompressed, len, limit-len);
+				len += n;
+				if(n > 0 || inflater.finished()) {
+					continue;
+				}
+				if(inflater.needsDictionary()) {
+					throw new ZipException("Compressed data requires a preset dictionary");
+				}
+				if(inflater.needsInput()) {
+					throw new ZipException("Unexpected end of compressed data");
+				}
+				if(len == limit && inflater.inflate(new byte[1]) > 0) {
+					throw new ZipException(String.format("Uncompressed data exceeds %d bytes",limit));
+				}
+			}
+			return len;
+		} catch (DataFormatException e) {
+			ZipException zip = new ZipException(e.getMessage());
+			zip.initCause(e);
+			throw zip;
+		} finally {
+			ZlibPool.release(inflater);
 		}
 	}
 
 	static int inflateWrapped(byte[] compressed, int compressedlen,
 			byte[] uncompressed) throws DataFormatException {
-		Inflater decompresser = new Inflater(false);
-		decompresser.setInput(compressed, 0, compressedlen);
-		int uncompressedlen = decompresser.inflate(uncompressed);
-		return uncompressedlen;
-	}
-
-	/**
-	 * Parses the main data 
-	 * @param level 
-	 * @return Number of bytes parsed
-	 */
-	private static int parseData(byte[] data, int start, int end, BlockType[] level) {
-		assert level.length == SIZE*SIZE*SIZE;
-		int pos = 0;
-		
-		int i;
-		for(i=start;i<end && pos < level.length;i++) {
-			byte val = data[i];
-			BlockType blk = BlockType.fromByte(val);
-			if( blk.hasSubtypes() ) {
-				i++;
-				val = data[i];
-				try {
-					blk = blk.getSubtype(val);
-				} catch(IllegalArgumentException e) {
-					logger.error(e.getMessage());
-				}
-			}
-			level[pos] = blk;
-			pos++;
+		Inflater decompresser = ZlibPool.inflater();
+		try {
+			decompresser.setInput(compressed, 0, compressedlen);
+			int uncompressedlen = decompresser.inflate(uncompressed);
+			return uncompressedlen;
+		} finally {
+			ZlibPool.release(decompresser);
 		}
-		return i-start;
 	}
-	
 
 	/**
 	 * CLI options
@@ -282,6 +799,14 @@ public class MekoReader {
 				.argName("file")
 				.desc( "Write level data. If empty, include raw data in json")
 				.build() )
+		.addOption("b", "batch", false, "Batch mode. Decode all files, directories, or globs given, "
+				+ "writing one json record per line to the json file (default stdout)")
+		.addOption(Option.builder("t")
+				.longOpt("threads")
+				.hasArg()
+				.argName("n")
+				.desc( "Number of threads for batch mode (default: number of cores)")
+				.build() )
 		;
 	}
 	public static void main(String[] args) {
@@ -312,12 +837,24 @@ public class MekoReader {
 		boolean storeData = cmd.hasOption("d");
 		
 		// Input file
-		if( args.length != 1 ) {
+		if( args.length < 1 ) {
 			System.err.println("No QR file specified");
 			help.printHelp(usage, options);
 			System.exit(2);
 			return;
 		}
+		if( cmd.hasOption("b") || args.length > 1
+				|| new File(args[0]).isDirectory() || MekoBatch.isGlob(args[0]) ) {
+			String single = singleFileOption(cmd);
+			if( single != null ) {
+				System.err.format("Option -%s is not supported in batch mode%n",single);
+				help.printHelp(usage, options);
+				System.exit(2);
+				return;
+			}
+			System.exit(runBatch(cmd, args, storeRaw, storeData));
+			return;
+		}
 		String filename = args[0];
 		
 		MekoReader qr = new MekoReader(storeRaw, storeData);
@@ -375,5 +912,54 @@ public class MekoReader {
 			System.exit(1); return;
 		}
 	}
+
+	/**
+	 * Find output options which only apply to a single file
+	 * @return the first such option given, or null if none
+	 */
+	private static String singleFileOption(CommandLine cmd) {
+		for(String opt : new String[] {"o","a"}) {
+			if( cmd.hasOption(opt)) {
+				return opt;
+			}
+		}
+		// Without a file, -r and -d just add fields to the json records
+		for(String opt : new String[] {"r","d"}) {
+			String out = cmd.getOptionValue(opt);
+			if( out != null && !out.isEmpty() ) {
+				return opt;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decode many files, writing line-delimited json
+	 * @return exit status
+	 */
+	private static int runBatch(CommandLine cmd, String[] inputs, boolean storeRaw, boolean storeData) {
+		int threads = 0;
+		if( cmd.hasOption("t")) {
+			try {
+				threads = Integer.parseInt(cmd.getOptionValue("t"));
+			} catch(NumberFormatException e) {
+				System.err.format("Invalid number of threads: %s%n",cmd.getOptionValue("t"));
+				return 2;
+			}
+		}
+		MekoBatch batch = new MekoBatch(threads, storeRaw, storeData);
+
+		String out = cmd.getOptionValue("j");
+		if( out == null || out.isEmpty() || out.equals("-")) {
+			return batch.run(Arrays.asList(inputs), System.out) == 0 ? 0 : 1;
+		}
+		try( PrintStream stream = new PrintStream(new FileOutputStream(Utils.expandUserHome(out)), false, "UTF-8") ) {
+			return batch.run(Arrays.asList(inputs), stream) == 0 ? 0 : 1;
+		} catch (IOException e) {
+			logger.error("Error writing {}",out,e);
+			System.err.format("Error writing %s%n",out);
+			return 1;
+		}
+	}
 	
 }
@@ -0,0 +1,245 @@
+package us.bliven.mekoqr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+import com.google.zxing.ChecksumException;
+import com.google.zxing.FormatException;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.ReaderException;
+
+/**
+ * Thread-safe facade for decoding levels from many threads at once.
+ *
+ * {@link MekoReader} instances are not thread-safe, since each one reuses
+ * its QR reader and decoding buffers between calls. The pool lends each
+ * caller a reader for the duration of one decode. At most <tt>size</tt>
+ * readers are ever created; when all of them are busy, callers block
+ * until one is returned.
+ */
+public class MekoReaderPool {
+
+	/**
+	 * An operation using a borrowed reader
+	 * @param <T> result type
+	 */
+	public interface ReaderTask<T> {
+		T apply(MekoReader reader) throws ReaderException, IOException, DataFormatException;
+	}
+
+	private final int size;
+	private final boolean storeRaw;
+	private final boolean storeData;
+	private final BlockingQueue<MekoReader> idle;
+	private final AtomicInteger created = new AtomicInteger();
+	private final List<MekoReader> all = new CopyOnWriteArrayList<>();
+	private volatile DetectionTier[] tiers = null;
+	private volatile ForkJoinPool racePool = null;
+	private volatile boolean lazy = false;
+
+	/**
+	 * Create a pool with one reader per core
+	 * @see MekoReader#MekoReader(boolean, boolean)
+	 */
+	public MekoReaderPool(boolean storeRaw, boolean storeData) {
+		this(Runtime.getRuntime().availableProcessors(), storeRaw, storeData);
+	}
+
+	/**
+	 * @param size Maximum number of readers
+	 * @see MekoReader#MekoReader(boolean, boolean)
+	 */
+	public MekoReaderPool(int size, boolean storeRaw, boolean storeData) {
+		if(size < 1) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		this.size = size;
+		this.storeRaw = storeRaw;
+		this.storeData = storeData;
+		this.idle = new ArrayBlockingQueue<>(size);
+	}
+
+	public MekoLevel readQR(File file) throws NotFoundException, ChecksumException, FormatException, IOException, DataFormatException {
+		MekoReader reader = borrow();
+		try {
+			return reader.readQR(file);
+		} finally {
+			release(reader);
+		}
+	}
+	public MekoLevel readQR(InputStream is) throws NotFoundException, ChecksumException, FormatException, IOException, DataFormatException {
+		MekoReader reader = borrow();
+		try {
+			return reader.readQR(is);
+		} finally {
+			release(reader);
+		}
+	}
+	/**
+	 * @see MekoReader#readAllQR(File)
+	 */
+	public List<MekoLevel> readAllQR(File file) throws NotFoundException, IOException {
+		MekoReader reader = borrow();
+		try {
+			return reader.readAllQR(file);
+		} finally {
+			release(reader);
+		}
+	}
+	/**
+	 * @see MekoReader#readAllQR(InputStream)
+	 */
+	public List<MekoLevel> readAllQR(InputStream is) throws NotFoundException, IOException {
+		MekoReader reader = borrow();
+		try {
+			return reader.readAllQR(is);
+		} finally {
+			release(reader);
+		}
+	}
+	/**
+	 * @see MekoReader#readQR(byte[], int, int)
+	 */
+	public MekoLevel readQR(byte[] luminance, int width, int height) throws NotFoundException, ChecksumException, FormatException, IOException, DataFormatException {
+		MekoReader reader = borrow();
+		try {
+			return reader.readQR(luminance, width, height);
+		} finally {
+			release(reader);
+		}
+	}
+	/**
+	 * @see MekoReader#readQR(ByteBuffer, int, int)
+	 */
+	public MekoLevel readQR(ByteBuffer luminance, int width, int height) throws NotFoundException, ChecksumException, FormatException, IOException, DataFormatException {
+		MekoReader reader = borrow();
+		try {
+			return reader.readQR(luminance, width, height);
+		} finally {
+			release(reader);
+		}
+	}
+
+	/**
+	 * @see MekoReader#readPayload(byte[])
+	 */
+	public MekoLevel readPayload(byte[] payload) throws IOException, DataFormatException {
+		MekoReader reader = borrow();
+		try {
+			return reader.readPayload(payload);
+		} finally {
+			release(reader);
+		}
+	}
+
+	/**
+	 * Run an arbitrary operation with a borrowed reader. The reader must not
+	 * be used after the task returns.
+	 * @param task
+	 * @return result of the task
+	 */
+	public <T> T apply(ReaderTask<T> task) throws ReaderException, IOException, DataFormatException {
+		MekoReader reader = borrow();
+		try {
+			return task.apply(reader);
+		} finally {
+			release(reader);
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Set the detection strategies for all readers in the pool
+	 * @see MekoReader#setTiers(DetectionTier...)
+	 */
+	public void setTiers(DetectionTier... tiers) {
+		this.tiers = tiers.clone();
+		for(MekoReader reader : all) {
+			reader.setTiers(tiers);
+		}
+	}
+
+	/**
+	 * Race detection tiers in parallel for all readers in the pool
+	 * @see MekoReader#setRacePool(ForkJoinPool)
+	 */
+	public void setRacePool(ForkJoinPool racePool) {
+		this.racePool = racePool;
+		for(MekoReader reader : all) {
+			reader.setRacePool(racePool);
+		}
+	}
+
+	/**
+	 * Read lazy levels with all readers in the pool
+	 * @see MekoReader#setLazy(boolean)
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+		for(MekoReader reader : all) {
+			reader.setLazy(lazy);
+		}
+	}
+
+	/**
+	 * Get the number of QR codes found by each tier, summed over all readers
+	 * @see MekoReader#getTierCounts()
+	 */
+	public Map<DetectionTier, Long> getTierCounts() {
+		Map<DetectionTier, Long> counts = new EnumMap<>(DetectionTier.class);
+		for(DetectionTier tier : DetectionTier.values()) {
+			counts.put(tier, 0L);
+		}
+		for(MekoReader reader : all) {
+			reader.getTierCounts().forEach((tier,n) -> counts.merge(tier, n, Long::sum));
+		}
+		return counts;
+	}
+
+	private MekoReader borrow() throws InterruptedIOException {
+		MekoReader reader = idle.poll();
+		if(reader != null) {
+			return reader;
+		}
+		// Create a new reader if under the limit
+		int n;
+		while( (n = created.get()) < size) {
+			if(created.compareAndSet(n, n+1)) {
+				reader = new MekoReader(storeRaw, storeData);
+				DetectionTier[] t = tiers;
+				if(t != null) {
+					reader.setTiers(t);
+				}
+				reader.setRacePool(racePool);
+				reader.setLazy(lazy);
+				all.add(reader);
+				return reader;
+			}
+		}
+		try {
+			return idle.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a reader");
+		}
+	}
+
+	private void release(MekoReader reader) {
+		idle.offer(reader);
+	}
+}
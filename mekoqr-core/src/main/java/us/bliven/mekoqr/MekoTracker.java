@@ -0,0 +1,201 @@
+package us.bliven.mekoqr;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.zxing.ChecksumException;
+import com.google.zxing.FormatException;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
+import com.google.zxing.qrcode.QRCodeReader;
+
+/**
+ * Decodes levels from a continuous sequence of video frames.
+ *
+ * A steady QR code stays in roughly the same place from one frame to the
+ * next, so the tracker remembers where the last code was found and
+ * searches that region first with a single cheap pass. Only when that
+ * fails does it fall back to the reader's full detection tiers. If the
+ * payload is the same as in the previous frame, a copy of the previously
+ * parsed level is returned without decompressing it again.
+ *
+ * Like MekoReader, trackers are not thread-safe; use one per video stream.
+ */
+public class MekoTracker {
+	private static final Logger logger = LoggerFactory.getLogger(MekoTracker.class);
+
+	/** Fraction of the code size added around the last location */
+	private static final double MARGIN = 0.5;
+
+	private final MekoReader reader;
+	private final QRCodeReader qr = new QRCodeReader();
+
+	// Region of interest from the last frame, or roiWidth == 0 if none
+	private int frameWidth, frameHeight;
+	private int roiLeft, roiTop, roiWidth, roiHeight;
+
+	private byte[] lastPayload;
+	/** Level parsed from lastPayload. Never returned, so it stays unmodified */
+	private MekoLevel lastLevel;
+	private ResultPoint[] lastPoints;
+	private long roiHits, fullScans, cacheHits;
+
+	public MekoTracker() {
+		this(new MekoReader());
+	}
+	/**
+	 * @param reader Reader for full-frame detection and level parsing. Its
+	 *  detection tiers, race pool and storage options all apply.
+	 */
+	public MekoTracker(MekoReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Decode the next frame.
+	 * @param frame
+	 * @return The level in the frame. Each call returns a new instance, so
+	 *  callers may modify it.
+	 * @throws NotFoundException No QR code in the frame. Tracking is reset.
+	 */
+	public MekoLevel track(LuminanceSource frame) throws NotFoundException, ChecksumException, FormatException, DataFormatException, ZipException {
+		Result result = null;
+		int left = 0, top = 0;
+		boolean trackable = true;
+		if(roiWidth > 0 && frame.getWidth() == frameWidth && frame.getHeight() == frameHeight) {
+			try {
+				DetectionTier tier = DetectionTier.HYBRID;
+				result = qr.decode(tier.bitmap(crop(frame)), tier.getHints());
+				left = roiLeft;
+				top = roiTop;
+				roiHits++;
+			} catch(ReaderException e) {
+				// lost it; search the whole frame
+			} finally {
+				qr.reset();
+			}
+		}
+		if(result == null) {
+			try {
+				result = reader.decode(frame);
+				fullScans++;
+			} catch(NotFoundException | ChecksumException | FormatException e) {
+				reset();
+				throw e;
+			}
+			if(!reader.getLastTier().preservesCoordinates()) {
+				// points are in the coordinates of a scaled or rotated image
+				trackable = false;
+			}
+		}
+		updateRegion(frame, trackable ? result : null, left, top);
+
+		byte[] payload = MekoReader.getPayload(result);
+		if(lastLevel != null && Arrays.equals(payload, lastPayload)) {
+			cacheHits++;
+			return new MekoLevel(lastLevel);
+		}
+		MekoLevel level = reader.toLevel(payload);
+		lastPayload = payload;
+		lastLevel = level;
+		return new MekoLevel(level);
+	}
+
+	/**
+	 * Decode the next frame from a raw luminance plane
+	 * @see MekoReader#readQR(byte[], int, int)
+	 */
+	public MekoLevel track(byte[] luminance, int width, int height) throws NotFoundException, ChecksumException, FormatException, DataFormatException, ZipException {
+		return track(new PlanarYUVLuminanceSource(luminance, width, height, 0, 0, width, height, false));
+	}
+
+	/**
+	 * Forget the last location and level
+	 */
+	public void reset() {
+		roiWidth = 0;
+		lastPoints = null;
+		lastPayload = null;
+		lastLevel = null;
+	}
+
+	/**
+	 * @return true if the next frame will search the last location first
+	 */
+	public boolean isTracking() {
+		return roiWidth > 0;
+	}
+
+	/**
+	 * @return Location of the last QR code (finder and alignment patterns)
+	 *  in frame coordinates, or null if not tracking
+	 */
+	public ResultPoint[] getLastPoints() {
+		return lastPoints == null ? null : lastPoints.clone();
+	}
+
+	/** @return Number of frames decoded from the tracked region alone */
+	public long getRegionHits() {
+		return roiHits;
+	}
+	/** @return Number of frames which needed full detection */
+	public long getFullScans() {
+		return fullScans;
+	}
+	/** @return Number of frames whose level was reused from the previous frame */
+	public long getCacheHits() {
+		return cacheHits;
+	}
+
+	private LuminanceSource crop(LuminanceSource frame) {
+		if(frame.isCropSupported()) {
+			return frame.crop(roiLeft, roiTop, roiWidth, roiHeight);
+		}
+		return new PlanarYUVLuminanceSource(frame.getMatrix(), frameWidth, frameHeight,
+				roiLeft, roiTop, roiWidth, roiHeight, false);
+	}
+
+	/**
+	 * Set the region of interest around the points of a result
+	 * @param result detection result, or null to stop tracking
+	 * @param left offset of the result's coordinate system within the frame
+	 * @param top
+	 */
+	private void updateRegion(LuminanceSource frame, Result result, int left, int top) {
+		ResultPoint[] points = result == null ? null : result.getResultPoints();
+		if(points == null || points.length < 3) {
+			roiWidth = 0;
+			lastPoints = null;
+			return;
+		}
+		lastPoints = new ResultPoint[points.length];
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		for(int i=0;i<points.length;i++) {
+			float x = points[i].getX() + left;
+			float y = points[i].getY() + top;
+			lastPoints[i] = new ResultPoint(x, y);
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+		// Finder pattern centers lie inside the code, so pad generously
+		int margin = (int) (Math.max(maxX-minX, maxY-minY)*MARGIN) + 1;
+		frameWidth = frame.getWidth();
+		frameHeight = frame.getHeight();
+		roiLeft = Math.max(0, (int) minX - margin);
+		roiTop = Math.max(0, (int) minY - margin);
+		roiWidth = Math.min(frameWidth, (int) maxX + margin + 1) - roiLeft;
+		roiHeight = Math.min(frameHeight, (int) maxY + margin + 1) - roiTop;
+		logger.trace("Tracking region {}x{}+{}+{}",roiWidth,roiHeight,roiLeft,roiTop);
+	}
+}
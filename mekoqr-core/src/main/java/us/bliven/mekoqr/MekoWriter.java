@@ -26,39 +26,78 @@ package us.bliven.mekoqr;
 
 import static us.bliven.mekoqr.MekoLevel.SIZE;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.zip.Deflater;
 
-import javax.imageio.ImageIO;
-
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
 import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+import com.google.zxing.qrcode.encoder.QRCode;
 
 /**
  * Code for writing Mekorama level QR codes
+ * 
+ * MekoWriter is not thread-safe, since it reuses encoding buffers between
+ * calls. Use one instance per thread.
  * @author blivens
  *
  */
 public class MekoWriter {
-	private QRCodeWriter writer;
+	/**
+	 * How hard to compress level payloads. Smaller payloads fit in lower QR
+	 * versions, which are faster to render and easier to scan.
+	 */
+	public enum Compression {
+		/** Fastest zlib level. Suitable for online requests */
+		FAST,
+		/** Try every zlib level and strategy, keeping the smallest stream */
+		SMALLEST,
+	}
+
+	/** Strategies tried by {@link Compression#SMALLEST} */
+	private static final int[] STRATEGIES = {Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY};
+
+	/** Longest title or author */
+	private static final int MAX_STRING_LENGTH = 255;
+
+	/** Modules of white border around the code, as recommended by the QR spec */
+	private static final int QUIET_ZONE = 4;
+
 	private int pngSize = 600;
+	private final PngEncoder png = new PngEncoder();
+	private int lastVersion = 0;
+	// Reused by every encode
+	private final byte[] chunk = new byte[2*(1+MAX_STRING_LENGTH)]; // fits title and author
+	private final byte[] payload = new byte[MekoReader.HEADER.length + deflateBound(LevelDecoder.MAX_UNCOMPRESSED)];
+	private byte[] trial;
+	private final Sink sink = new Sink();
+	private final Input<MekoLevel> levelInput = this::feedLevel;
 	public MekoWriter() {
-		writer = new QRCodeWriter();
 	}
 
+	/**
+	 * @return default image size in pixels
+	 */
+	public int getPngSize() {
+		return pngSize;
+	}
+	/**
+	 * Set the default image size. Codes are drawn at the largest whole
+	 * number of pixels per module that fits, and centered.
+	 * @param pngSize image width and height in pixels
+	 */
+	public void setPngSize(int pngSize) {
+		this.pngSize = pngSize;
+	}
 	
 	/**
 	 * Write the data bytes to a QR code
@@ -68,45 +107,107 @@ public class MekoWriter {
 	 * @throws IOException for errors writing the file
 	 */
 	public void write(File outfile, byte[] data, int len) throws WriterException, IOException {
-		BufferedImage image = generateQR(data, len);
-		// output as PNG
-		ImageIO.write(image, "png", outfile);
+		write(outfile, data, len, pngSize);
+	}
+	/**
+	 * Write the data bytes to a QR code
+	 * @param outfile Output file
+	 * @param data bytes to write
+	 * @param size image size in pixels. The image may be larger if the code
+	 *  needs more than one pixel per module.
+	 * @throws WriterException for errors generating the code
+	 * @throws IOException for errors writing the file
+	 */
+	public void write(File outfile, byte[] data, int len, int size) throws WriterException, IOException {
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(outfile))) {
+			write(out, data, len, size);
+		}
 	}
 	public void write(OutputStream out, byte[] data, int len) throws WriterException, IOException {
-		BufferedImage image = generateQR(data, len);
+		write(out, data, len, pngSize);
+	}
+	public void write(OutputStream out, byte[] data, int len, int size) throws WriterException, IOException {
+		BufferedImage image = generateQR(data, len, size);
 		// output as PNG
-		ImageIO.write(image, "png", out);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		int width = image.getWidth();
+		png.write(out, pixels, width, image.getHeight(), (width + 7) / 8);
 	}
 
-	private BufferedImage generateQR(byte[] data, int len)
+	/**
+	 * Render a QR code as a 1-bit image
+	 * @param size minimum image size
+	 */
+	BufferedImage generateQR(byte[] data, int len, int size)
 			throws WriterException {
-		Map<EncodeHintType, Object> hints = new HashMap<>();
-		hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
-		
-		// ISO-8859-1 is defined for all bytes, unlike UTF-8 or ASCII, so it won't mangle the data
-		String contents = new String(data, 0, len, Charset.forName("ISO-8859-1"));
-		
-		int width = pngSize;
-		int height = pngSize;
-		
-		// create QR code
-		BitMatrix matrix = writer.encode(contents, BarcodeFormat.QR_CODE, width,height, hints);
-		
-		// create image
-		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		Graphics2D graphics = image.createGraphics();
-		graphics.setColor(Color.WHITE);
-		graphics.fillRect(0, 0, width,height);
-		graphics.setColor(Color.BLACK);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				if (matrix.get(x, y)) {
-					graphics.fillRect(x, y, 1, 1);
+		QRCode code = encodeQR(data, len);
+		lastVersion = code.getVersion().getVersionNumber();
+		ByteMatrix matrix = code.getMatrix();
+		int modules = matrix.getWidth() + 2*QUIET_ZONE;
+		int width = Math.max(size, modules);
+		int scale = width / modules;
+		int pad = (width - modules*scale) / 2 + QUIET_ZONE*scale;
+
+		// Pack pixels directly into the raster. Bits are 1 for white
+		BufferedImage image = new BufferedImage(width, width, BufferedImage.TYPE_BYTE_BINARY);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		int stride = (width + 7) / 8;
+		Arrays.fill(pixels, (byte) 0xff);
+		byte[] row = new byte[stride];
+		int codeWidth = matrix.getWidth();
+		for (int y = 0; y < codeWidth; y++) {
+			Arrays.fill(row, (byte) 0xff);
+			int x = 0;
+			while (x < codeWidth) {
+				if (matrix.get(x, y) != 1) {
+					x++;
+					continue;
 				}
+				// run of dark modules
+				int start = x;
+				while (x < codeWidth && matrix.get(x, y) == 1) {
+					x++;
+				}
+				clearBits(row, pad + start*scale, pad + x*scale);
+			}
+			int top = pad + y*scale;
+			for (int dy = 0; dy < scale; dy++) {
+				System.arraycopy(row, 0, pixels, (top + dy)*stride, stride);
 			}
 		}
 		return image;
 	}
+
+	/**
+	 * Get the QR version (1-40) needed for a payload
+	 * @param data payload
+	 * @param len payload length
+	 * @throws WriterException if the payload does not fit in any QR code
+	 */
+	public static int getQRVersion(byte[] data, int len) throws WriterException {
+		return encodeQR(data, len).getVersion().getVersionNumber();
+	}
+	/**
+	 * @return QR version of the most recently written code, or 0
+	 */
+	public int getLastVersion() {
+		return lastVersion;
+	}
+
+	private static QRCode encodeQR(byte[] data, int len) throws WriterException {
+		// ISO-8859-1 is defined for all bytes, unlike UTF-8 or ASCII, so it won't mangle the data
+		String contents = new String(data, 0, len, StandardCharsets.ISO_8859_1);
+		return Encoder.encode(contents, ErrorCorrectionLevel.L);
+	}
+
+	/**
+	 * Clear bits [from,to) of a packed, most-significant-bit-first row
+	 */
+	private static void clearBits(byte[] row, int from, int to) {
+		for (int i = from; i < to; i++) {
+			row[i >>> 3] &= ~(0x80 >>> (i & 7));
+		}
+	}
 	
 	public static int encodeLevel(MekoLevel level, byte[] uncompressed) {
 		
@@ -117,7 +218,7 @@ public class MekoWriter {
 			for(int y = 0; y< SIZE; y++) {
 				for(int x = 0; x< SIZE; x++) {
 					BlockType blk = level.getBlock(x, y, z);
-					byte[] vals = blk.getValues();
+					byte[] vals = blk.values();
 					for(int i=0;i<vals.length;i++) {
 						uncompressed[len] = vals[i];
 						len++;
@@ -129,7 +230,7 @@ public class MekoWriter {
 		return len;
 	}
 	private static int copyString(String str, byte[] bytes, int pos) {
-		assert str.length() < 256;
+		checkLength(str);
 
 		bytes[pos] = (byte) str.length();
 		pos++;
@@ -142,36 +243,141 @@ public class MekoWriter {
 	}
 	
 	public void write(File file, MekoLevel level ) throws WriterException, IOException {
-		byte[] encoded = new byte[17*2+SIZE*SIZE*SIZE*2];
-		int len = encodeLevel(level, encoded);
-		
-		byte[] compressed = new byte[len+4];
-		len = deflateWrapped(encoded, compressed);
-		for(int i=len-1;i>=0;i--) {
-			compressed[i+4] = compressed[i];
-		}
-		compressed[0] = 0x01;
-		compressed[1] = 0x13;
-		compressed[2] = 0x0D;
-		compressed[3] = (byte)0xFC;
-		
-		write(file,compressed,len+4);
+		write(file, level, pngSize, Compression.FAST);
+	}
+	public void write(File file, MekoLevel level, int size) throws WriterException, IOException {
+		write(file, level, size, Compression.FAST);
+	}
+	public void write(File file, MekoLevel level, int size, Compression compression) throws WriterException, IOException {
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			write(out, level, size, compression);
+		}
 	}
 	public void write(OutputStream out, MekoLevel level ) throws WriterException, IOException {
-		byte[] encoded = new byte[17*2+SIZE*SIZE*SIZE*2];
-		int len = encodeLevel(level, encoded);
-		
-		byte[] compressed = new byte[len+4];
-		len = deflateWrapped(encoded, compressed);
-		for(int i=len-1;i>=0;i--) {
-			compressed[i+4] = compressed[i];
-		}
-		compressed[0] = 0x01;
-		compressed[1] = 0x13;
-		compressed[2] = 0x0D;
-		compressed[3] = (byte)0xFC;
-		
-		write(out,compressed,len+4);
+		write(out, level, pngSize, Compression.FAST);
+	}
+	public void write(OutputStream out, MekoLevel level, int size) throws WriterException, IOException {
+		write(out, level, size, Compression.FAST);
+	}
+	/**
+	 * Write a level to a QR code.
+	 *
+	 * Unmodified levels which kept their original payload
+	 * ({@link MekoLevel#getRawData()}) are written from it directly with
+	 * {@link Compression#FAST}, skipping encoding.
+	 * @param out
+	 * @param level
+	 * @param size image size in pixels
+	 * @param compression
+	 */
+	public void write(OutputStream out, MekoLevel level, int size, Compression compression) throws WriterException, IOException {
+		byte[] raw = reusablePayload(level, compression);
+		if(raw != null) {
+			write(out, raw, raw.length, size);
+			return;
+		}
+		int len = encodePayload(level, compression);
+		write(out, payload, len, size);
+	}
+
+	/**
+	 * Encode a level as a QR payload: the level header followed by the
+	 * zlib-compressed level
+	 * @param level
+	 * @param compression
+	 * @return payload bytes
+	 * @throws IllegalArgumentException if the title or author is longer than 255 characters
+	 */
+	public byte[] encode(MekoLevel level, Compression compression) {
+		byte[] raw = reusablePayload(level, compression);
+		if(raw != null) {
+			return raw.clone();
+		}
+		int len = encodePayload(level, compression);
+		return Arrays.copyOf(payload, len);
+	}
+
+	/**
+	 * Get the level's original payload, if it is still valid and may be
+	 * used for this compression
+	 * @return the payload, or null if the level must be encoded
+	 */
+	private static byte[] reusablePayload(MekoLevel level, Compression compression) {
+		if(compression != Compression.FAST) {
+			// The original may not be the smallest
+			return null;
+		}
+		// Only payloads the reader parsed, and cleared whenever the level is modified
+		return level.getVerifiedPayload();
+	}
+
+	/**
+	 * Stream a level into the payload buffer. The header is written first,
+	 * then the title, author and blocks are fed to the deflater in chunks
+	 * and compressed directly after it.
+	 * @return payload length
+	 */
+	private int encodePayload(MekoLevel level, Compression compression) {
+		int header = MekoReader.HEADER.length;
+		System.arraycopy(MekoReader.HEADER, 0, payload, 0, header);
+		if(compression == Compression.SMALLEST && trial == null) {
+			trial = new byte[payload.length];
+		}
+		Deflater deflater = ZlibPool.deflater(1);
+		try {
+			sink.deflater = deflater;
+			return header + compress(levelInput, level, sink, payload, header, trial, compression);
+		} finally {
+			sink.deflater = null;
+			ZlibPool.release(deflater);
+		}
+	}
+
+	/**
+	 * Feed the uncompressed level, as produced by {@link #encodeLevel(MekoLevel, byte[])}
+	 */
+	private void feedLevel(MekoLevel level, Sink sink) {
+		int n = putString(level.getTitle(), 0);
+		n = putString(level.getAuthor(), n);
+		// Codes are stored in file order
+		for(short code : level.getCodes()) {
+			if(n > chunk.length - 2) {
+				sink.write(chunk, 0, n);
+				n = 0;
+			}
+			if((code & 0xff00) != 0) {
+				// subtype
+				chunk[n++] = (byte) (code >> 8);
+			}
+			chunk[n++] = (byte) code;
+		}
+		sink.write(chunk, 0, n);
+	}
+
+	/**
+	 * Titles and authors are prefixed by a single length byte
+	 * @throws IllegalArgumentException if the string is too long to encode
+	 */
+	private static void checkLength(String str) {
+		if(str.length() > MAX_STRING_LENGTH) {
+			throw new IllegalArgumentException(String.format(
+					"\"%.20s...\" is longer than %d characters", str, MAX_STRING_LENGTH));
+		}
+	}
+
+	/**
+	 * Copy a length-prefixed string into the chunk buffer. Non-ASCII
+	 * characters become '?', as with {@link StandardCharsets#US_ASCII}.
+	 * @return new position
+	 */
+	private int putString(String str, int pos) {
+		checkLength(str);
+		chunk[pos++] = (byte) str.length();
+		for(int i=0;i<str.length();i++) {
+			char c = str.charAt(i);
+			chunk[pos++] = c < 0x80 ? (byte) c : (byte) '?';
+		}
+		return pos;
 	}
 	
 	/**
@@ -181,11 +387,122 @@ public class MekoWriter {
 	 * @return
 	 */
 	static int deflateWrapped( byte[] uncompressed, byte[] compressed) {
-		Deflater compressor = new Deflater(1, false);
-		compressor.setInput(uncompressed);
-		compressor.finish();
-		int compressedlen = compressor.deflate(compressed);
-		return compressedlen;
+		return deflateWrapped(uncompressed, uncompressed.length, compressed, 0, Compression.FAST);
+	}
+
+	/**
+	 * Compress into a zlib-wrapped DEFLATE data stream.
+	 * @param uncompressed
+	 * @param len uncompressed length
+	 * @param compressed output; must have room for {@link #deflateBound(int)} bytes
+	 * @param offset start of the output within compressed
+	 * @param compression
+	 * @return compressed length
+	 */
+	static int deflateWrapped(byte[] uncompressed, int len, byte[] compressed, int offset, Compression compression) {
+		byte[] trial = compression == Compression.SMALLEST ? new byte[compressed.length] : null;
+		Deflater deflater = ZlibPool.deflater(1);
+		try {
+			Sink sink = new Sink();
+			sink.deflater = deflater;
+			return compress((in, s) -> s.write(in, 0, len), uncompressed, sink, compressed, offset, trial, compression);
+		} finally {
+			ZlibPool.release(deflater);
+		}
+	}
+
+	/**
+	 * Source of uncompressed data. May be fed more than once.
+	 * @param <T> object being compressed
+	 */
+	private interface Input<T> {
+		void feed(T obj, Sink sink);
+	}
+
+	/**
+	 * Compress input, searching for the smallest stream if requested.
+	 *
+	 * The zlib header is always 78 01, as written by the game, regardless
+	 * of the zlib level used. The level in the header is informational only.
+	 * @param sink sink with a level 1, default strategy deflater
+	 * @param out output buffer
+	 * @param offset start of the output
+	 * @param trial scratch buffer as large as out, for SMALLEST
+	 * @return compressed length
+	 */
+	private static <T> int compress(Input<T> input, T obj, Sink sink, byte[] out, int offset, byte[] trial, Compression compression) {
+		Deflater deflater = sink.deflater;
+		int best = sink.deflate(input, obj, out, offset);
+		if(compression == Compression.SMALLEST) {
+			for(int strategy : STRATEGIES) {
+				// Huffman-only output doesn't depend on the level
+				int maxLevel = strategy == Deflater.HUFFMAN_ONLY ? 1 : Deflater.BEST_COMPRESSION;
+				for(int level = 1; level <= maxLevel; level++) {
+					if(level == 1 && strategy == Deflater.DEFAULT_STRATEGY) {
+						continue; // already done
+					}
+					deflater.reset();
+					deflater.setLevel(level);
+					deflater.setStrategy(strategy);
+					int n = sink.deflate(input, obj, trial, 0);
+					if(n < best) {
+						best = n;
+						System.arraycopy(trial, 0, out, offset, n);
+					}
+				}
+			}
+		}
+		// FLEVEL 0 with matching FCHECK; the CMF byte is always 78
+		out[offset+1] = 0x01;
+		return best;
+	}
+
+	/**
+	 * Drains a deflater into an output buffer as input is written
+	 */
+	private static final class Sink {
+		Deflater deflater;
+		private byte[] out;
+		private int pos;
+
+		/**
+		 * Compress all input into out
+		 * @return compressed length
+		 */
+		<T> int deflate(Input<T> input, T obj, byte[] out, int offset) {
+			this.out = out;
+			this.pos = offset;
+			input.feed(obj, this);
+			deflater.finish();
+			while(!deflater.finished()) {
+				drain();
+			}
+			this.out = null;
+			return pos - offset;
+		}
+
+		void write(byte[] b, int off, int len) {
+			deflater.setInput(b, off, len);
+			// Changed parameters take effect in a separate call, so loop
+			while(!deflater.needsInput()) {
+				drain();
+			}
+		}
+
+		private void drain() {
+			if(pos == out.length) {
+				throw new IllegalStateException("Compressed data exceeds buffer");
+			}
+			pos += deflater.deflate(out, pos, out.length - pos);
+		}
+	}
+
+	/**
+	 * Upper bound on the zlib-wrapped size of len bytes for any level and
+	 * strategy (zlib's conservative deflateBound)
+	 */
+	static int deflateBound(int len) {
+		return len + ((len + 7) >> 3) + ((len + 63) >> 6) + 5 + 6;
 	}
 
 
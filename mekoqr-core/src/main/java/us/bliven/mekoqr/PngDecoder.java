@@ -0,0 +1,428 @@
+package us.bliven.mekoqr;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Decodes PNG images straight to 8-bit luminance, without AWT.
+ *
+ * Scanlines are inflated and unfiltered one at a time and converted to
+ * luminance using the same weights as ZXing's BufferedImageLuminanceSource
+ * (fully transparent pixels are white, including those matching a tRNS
+ * color). All bit depths and color types are supported; interlaced images
+ * are not.
+ *
+ * Instances hold scratch buffers and are not thread-safe.
+ */
+class PngDecoder {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	/** Bytes needed to decide whether a stream is supported: signature plus IHDR chunk */
+	static final int HEADER_LENGTH = 8 + 8 + 13 + 4;
+
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504c5445;
+	private static final int TRNS = 0x74524e53;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454e44;
+
+	private final byte[] header = new byte[HEADER_LENGTH];
+	private final byte[] input = new byte[8192];
+	private byte[] row = new byte[0];
+	private byte[] prev = new byte[0];
+
+	/**
+	 * Decode a PNG image.
+	 *
+	 * If the stream does not hold a supported PNG, null is returned after
+	 * reading at most {@link #HEADER_LENGTH} bytes, so callers can reset the
+	 * stream and fall back to another decoder.
+	 * @param in Input stream, positioned at the start of the image
+	 * @param maxSize Images larger than this in either dimension are
+	 *  subsampled while decoding. 0 for full resolution.
+	 * @return luminance of the image, or null if unsupported
+	 * @throws IOException for corrupt or truncated PNG data
+	 */
+	LuminanceSource decode(InputStream in, int maxSize) throws IOException {
+		int n = readFully(in, header, 0, HEADER_LENGTH);
+		if(n < HEADER_LENGTH) {
+			return null;
+		}
+		for(int i=0;i<SIGNATURE.length;i++) {
+			if(header[i] != SIGNATURE[i]) {
+				return null;
+			}
+		}
+		if(getInt(header, 8) != 13 || getInt(header, 12) != IHDR) {
+			return null;
+		}
+		int width = getInt(header, 16);
+		int height = getInt(header, 20);
+		int depth = header[24];
+		int colorType = header[25];
+		int interlace = header[28];
+		if(width <= 0 || height <= 0 || interlace != 0 || header[26] != 0 || header[27] != 0) {
+			return null;
+		}
+		int channels;
+		switch(colorType) {
+		case 0: channels = 1; break; // gray
+		case 2: channels = 3; break; // RGB
+		case 3: channels = 1; break; // palette
+		case 4: channels = 2; break; // gray+alpha
+		case 6: channels = 4; break; // RGBA
+		default: return null;
+		}
+		if(depth != 1 && depth != 2 && depth != 4 && depth != 8 && depth != 16) {
+			return null;
+		}
+		// Allowed combinations from table 11.1 of the PNG spec
+		boolean validDepth;
+		switch(colorType) {
+		case 0: validDepth = true; break;
+		case 3: validDepth = depth <= 8; break;
+		default: validDepth = depth >= 8; break;
+		}
+		if(!validDepth) {
+			throw new IOException(String.format("Unsupported PNG bit depth %d for color type %d", depth, colorType));
+		}
+
+		int sub = 1;
+		int size = Math.max(width, height);
+		if(maxSize > 0 && size > maxSize) {
+			sub = (size + maxSize - 1) / maxSize;
+		}
+		int outWidth = (width + sub - 1) / sub;
+		int outHeight = (height + sub - 1) / sub;
+		if((long) outWidth*outHeight > Integer.MAX_VALUE) {
+			throw new IOException("PNG image too large");
+		}
+		byte[] luminance = new byte[outWidth*outHeight];
+
+		int bitsPerPixel = channels*depth;
+		int bpp = Math.max(1, bitsPerPixel/8); // filter unit
+		long rowBytesLong = ((long) width*bitsPerPixel + 7)/8;
+		if(rowBytesLong > Integer.MAX_VALUE - 1) {
+			throw new IOException("PNG image too large");
+		}
+		int rowBytes = (int) rowBytesLong;
+		if(row.length < rowBytes+1) {
+			row = new byte[rowBytes+1];
+			prev = new byte[rowBytes+1];
+		}
+		// First row is unfiltered against zeros
+		Arrays.fill(prev, 0, rowBytes+1, (byte) 0);
+
+		byte[] palette = null;
+		int[] transparent = null; // tRNS color for gray and RGB images
+		int y = 0;
+		int rowPos = 0;
+		Inflater inflater = ZlibPool.inflater();
+		try {
+			chunks:
+			while(true) {
+				readFully(in, header, 0, 8, true);
+				int length = getInt(header, 0);
+				int type = getInt(header, 4);
+				if(length < 0) {
+					throw new IOException("Invalid PNG chunk length");
+				}
+				switch(type) {
+				case PLTE:
+					palette = readPalette(in, length, palette);
+					break;
+				case TRNS:
+					if(colorType == 3) {
+						palette = readTransparency(in, length, palette);
+					} else if(colorType == 0 || colorType == 2) {
+						transparent = readTransparentColor(in, length, channels);
+					} else {
+						skip(in, length);
+					}
+					break;
+				case IDAT:
+					int remaining = length;
+					while(remaining > 0) {
+						int len = readFully(in, input, 0, Math.min(remaining, input.length), true);
+						remaining -= len;
+						inflater.setInput(input, 0, len);
+						while(y < height) {
+							int got = inflater.inflate(row, rowPos, rowBytes+1-rowPos);
+							if(got == 0) {
+								if(inflater.needsDictionary()) {
+									throw new IOException("Invalid PNG data");
+								}
+								break;
+							}
+							rowPos += got;
+							if(rowPos == rowBytes+1) {
+								unfilter(row, prev, rowBytes, bpp);
+								if(y % sub == 0) {
+									convert(row, luminance, (y/sub)*outWidth, width, sub,
+											colorType, depth, palette);
+									if(transparent != null) {
+										whiten(row, luminance, (y/sub)*outWidth, width, sub,
+												depth, transparent);
+									}
+								}
+								byte[] tmp = prev;
+								prev = row;
+								row = tmp;
+								rowPos = 0;
+								y++;
+							}
+						}
+					}
+					break;
+				case IEND:
+					break chunks;
+				default:
+					skip(in, length);
+				}
+				skip(in, 4); // CRC
+				if(y == height && inflater.finished()) {
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid PNG data: "+e.getMessage(), e);
+		} finally {
+			ZlibPool.release(inflater);
+		}
+		if(y < height) {
+			throw new EOFException(String.format("PNG ends after %d of %d rows",y,height));
+		}
+		return new PlanarYUVLuminanceSource(luminance, outWidth, outHeight, 0, 0, outWidth, outHeight, false);
+	}
+
+	/**
+	 * Palette entries are stored directly as luminance, with a fifth
+	 * flag for transparency.
+	 * @return luminance for each of the 256 possible indices
+	 */
+	private byte[] readPalette(InputStream in, int length, byte[] palette) throws IOException {
+		if(length % 3 != 0 || length > 256*3) {
+			throw new IOException("Invalid PNG palette");
+		}
+		byte[] rgb = new byte[length];
+		readFully(in, rgb, 0, length, true);
+		if(palette == null) {
+			palette = new byte[256];
+		}
+		for(int i=0;i<length/3;i++) {
+			palette[i] = luminance(rgb[3*i] & 0xff, rgb[3*i+1] & 0xff, rgb[3*i+2] & 0xff);
+		}
+		return palette;
+	}
+	private byte[] readTransparency(InputStream in, int length, byte[] palette) throws IOException {
+		if(length > 256) {
+			throw new IOException("Invalid PNG transparency");
+		}
+		byte[] alpha = new byte[length];
+		readFully(in, alpha, 0, length, true);
+		if(palette == null) {
+			palette = new byte[256];
+		}
+		for(int i=0;i<length;i++) {
+			if(alpha[i] == 0) {
+				palette[i] = (byte) 0xff;
+			}
+		}
+		return palette;
+	}
+
+	/**
+	 * Read the tRNS color of a gray or RGB image
+	 * @return one sample per channel, at the image's bit depth
+	 */
+	private int[] readTransparentColor(InputStream in, int length, int channels) throws IOException {
+		if(length != 2*channels) {
+			throw new IOException("Invalid PNG transparency");
+		}
+		byte[] color = new byte[length];
+		readFully(in, color, 0, length, true);
+		int[] samples = new int[channels];
+		for(int c=0;c<channels;c++) {
+			samples[c] = (color[2*c] & 0xff) << 8 | (color[2*c+1] & 0xff);
+		}
+		return samples;
+	}
+
+	/**
+	 * Make the pixels of a converted gray or RGB scanline which match the
+	 * tRNS color white, like other fully transparent pixels
+	 * @param transparent sample values of the transparent color
+	 */
+	private static void whiten(byte[] row, byte[] out, int offset, int width, int sub,
+			int depth, int[] transparent) {
+		int channels = transparent.length;
+		int o = offset;
+		for(int x=0;x<width;x+=sub) {
+			boolean match = true;
+			for(int c=0;c<channels && match;c++) {
+				int i = x*channels + c;
+				int value = depth == 16 ? (row[1+2*i] & 0xff) << 8 | (row[2+2*i] & 0xff) : sample(row, i, depth);
+				match = value == transparent[c];
+			}
+			if(match) {
+				out[o] = (byte) 0xff;
+			}
+			o++;
+		}
+	}
+
+	/**
+	 * Reverse the PNG filter for one scanline
+	 * @param row filter type followed by filtered bytes
+	 * @param prev previous unfiltered row (zeros for the first row)
+	 * @param rowBytes length without the filter byte
+	 * @param bpp bytes per complete pixel, minimum 1
+	 * @throws IOException for unknown filter types
+	 */
+	private static void unfilter(byte[] row, byte[] prev, int rowBytes, int bpp) throws IOException {
+		int end = rowBytes+1;
+		switch(row[0]) {
+		case 0:
+			break;
+		case 1: // sub
+			for(int i=1+bpp;i<end;i++) {
+				row[i] += row[i-bpp];
+			}
+			break;
+		case 2: // up
+			for(int i=1;i<end;i++) {
+				row[i] += prev[i];
+			}
+			break;
+		case 3: // average
+			for(int i=1;i<end;i++) {
+				int left = i > bpp ? row[i-bpp] & 0xff : 0;
+				row[i] += (left + (prev[i] & 0xff)) >>> 1;
+			}
+			break;
+		case 4: // paeth
+			for(int i=1;i<end;i++) {
+				int a = i > bpp ? row[i-bpp] & 0xff : 0;
+				int b = prev[i] & 0xff;
+				int c = i > bpp ? prev[i-bpp] & 0xff : 0;
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				int pred;
+				if(pa <= pb && pa <= pc) {
+					pred = a;
+				} else if(pb <= pc) {
+					pred = b;
+				} else {
+					pred = c;
+				}
+				row[i] += pred;
+			}
+			break;
+		default:
+			throw new IOException("Invalid PNG filter "+row[0]);
+		}
+	}
+
+	/**
+	 * Convert an unfiltered scanline to luminance
+	 */
+	private static void convert(byte[] row, byte[] out, int offset, int width, int sub,
+			int colorType, int depth, byte[] palette) throws IOException {
+		int o = offset;
+		switch(colorType) {
+		case 0: // gray
+			if(depth == 8) {
+				for(int x=0;x<width;x+=sub) {
+					out[o++] = row[1+x];
+				}
+			} else if(depth == 16) {
+				for(int x=0;x<width;x+=sub) {
+					out[o++] = row[1+2*x];
+				}
+			} else {
+				int max = (1 << depth) - 1;
+				for(int x=0;x<width;x+=sub) {
+					out[o++] = (byte) (sample(row, x, depth)*255/max);
+				}
+			}
+			break;
+		case 3: // palette
+			if(palette == null) {
+				throw new IOException("PNG palette missing");
+			}
+			for(int x=0;x<width;x+=sub) {
+				out[o++] = palette[sample(row, x, depth)];
+			}
+			break;
+		case 2: // RGB
+		case 4: // gray+alpha
+		case 6: // RGBA
+			int channels = colorType == 2 ? 3 : colorType == 4 ? 2 : 4;
+			int step = depth/8; // 1 or 2; use the high byte of 16-bit samples
+			int pixel = channels*step;
+			boolean alpha = colorType != 2;
+			for(int x=0;x<width;x+=sub) {
+				int i = 1 + x*pixel;
+				if(alpha && row[i + (channels-1)*step] == 0 && (step == 1 || row[i + (channels-1)*step + 1] == 0)) {
+					out[o++] = (byte) 0xff;
+				} else if(colorType == 4) {
+					out[o++] = row[i];
+				} else {
+					out[o++] = luminance(row[i] & 0xff, row[i+step] & 0xff, row[i+2*step] & 0xff);
+				}
+			}
+			break;
+		default:
+			throw new IOException("Unsupported PNG color type "+colorType);
+		}
+	}
+
+	/** Extract a sample of at most 8 bits */
+	private static int sample(byte[] row, int x, int depth) {
+		int bit = x*depth;
+		int shift = 8 - depth - (bit & 7);
+		return (row[1 + (bit >>> 3)] >>> shift) & ((1 << depth) - 1);
+	}
+
+	private static byte luminance(int r, int g, int b) {
+		return (byte) ((306*r + 601*g + 117*b + 0x200) >> 10);
+	}
+
+	private static int getInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) << 24 | (b[offset+1] & 0xff) << 16
+				| (b[offset+2] & 0xff) << 8 | (b[offset+3] & 0xff);
+	}
+
+	private static int readFully(InputStream in, byte[] b, int offset, int len) throws IOException {
+		return readFully(in, b, offset, len, false);
+	}
+	private static int readFully(InputStream in, byte[] b, int offset, int len, boolean required) throws IOException {
+		int total = 0;
+		while(total < len) {
+			int n = in.read(b, offset+total, len-total);
+			if(n < 0) {
+				if(required) {
+					throw new EOFException("Unexpected end of PNG");
+				}
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private void skip(InputStream in, int len) throws IOException {
+		while(len > 0) {
+			int n = readFully(in, input, 0, Math.min(len, input.length), true);
+			len -= n;
+		}
+	}
+}
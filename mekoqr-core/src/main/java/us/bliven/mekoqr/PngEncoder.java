@@ -0,0 +1,128 @@
+package us.bliven.mekoqr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 1-bit grayscale PNG images, such as rendered QR codes.
+ *
+ * Scanlines are deflated one at a time and IDAT chunks are streamed to the
+ * output as the buffer fills, so the image is never compressed as a whole.
+ * Output depends only on the pixels, so identical images always produce
+ * identical files.
+ *
+ * Instances hold scratch buffers and are not thread-safe.
+ */
+class PngEncoder {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+	private static final int IHDR = 0x49484452;
+	private static final int IDAT = 0x49444154;
+	private static final int IEND = 0x49454e44;
+
+	private final int level;
+	private final CRC32 crc = new CRC32();
+	private final byte[] header = new byte[8];
+	private final byte[] buffer = new byte[8192];
+	private byte[] scanline = new byte[0];
+
+	/**
+	 * Create an encoder with the default compression level
+	 */
+	PngEncoder() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+	/**
+	 * @param level zlib compression level
+	 */
+	PngEncoder(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * Write a bilevel image
+	 * @param out destination. Not closed.
+	 * @param pixels packed rows, most significant bit first, with 1 for white
+	 * @param width image width in pixels
+	 * @param height image height in pixels
+	 * @param stride bytes per row in pixels, at least (width+7)/8
+	 * @throws IOException from the output stream
+	 */
+	void write(OutputStream out, byte[] pixels, int width, int height, int stride) throws IOException {
+		int rowBytes = (width + 7) / 8;
+		if(width < 1 || height < 1 || stride < rowBytes || pixels.length < (long) stride*height) {
+			throw new IllegalArgumentException("Invalid image dimensions");
+		}
+		out.write(SIGNATURE);
+
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 1; // bit depth
+		ihdr[9] = 0; // grayscale
+		// compression, filter and interlace methods are all 0
+		writeChunk(out, IHDR, ihdr, 0, ihdr.length);
+
+		if(scanline.length < rowBytes + 1) {
+			scanline = new byte[rowBytes + 1];
+		}
+		// Filter type 0 (none) on every row, which is recommended for
+		// images under 8 bits and leaves repeated rows to deflate
+		scanline[0] = 0;
+		Deflater deflater = ZlibPool.deflater(level);
+		try {
+			int pos = 0;
+			for(int y=0;y<height;y++) {
+				System.arraycopy(pixels, y*stride, scanline, 1, rowBytes);
+				deflater.setInput(scanline, 0, rowBytes + 1);
+				while(!deflater.needsInput()) {
+					pos = drain(out, deflater, pos);
+				}
+			}
+			deflater.finish();
+			while(!deflater.finished()) {
+				pos = drain(out, deflater, pos);
+			}
+			if(pos > 0) {
+				writeChunk(out, IDAT, buffer, 0, pos);
+			}
+		} finally {
+			ZlibPool.release(deflater);
+		}
+		writeChunk(out, IEND, buffer, 0, 0);
+	}
+
+	/**
+	 * Deflate into the buffer, writing an IDAT chunk whenever it fills
+	 * @return new buffer position
+	 */
+	private int drain(OutputStream out, Deflater deflater, int pos) throws IOException {
+		pos += deflater.deflate(buffer, pos, buffer.length - pos);
+		if(pos == buffer.length) {
+			writeChunk(out, IDAT, buffer, 0, pos);
+			pos = 0;
+		}
+		return pos;
+	}
+
+	private void writeChunk(OutputStream out, int type, byte[] data, int offset, int len) throws IOException {
+		putInt(header, 0, len);
+		putInt(header, 4, type);
+		out.write(header, 0, 8);
+		out.write(data, offset, len);
+		crc.reset();
+		crc.update(header, 4, 4);
+		crc.update(data, offset, len);
+		putInt(header, 0, (int) crc.getValue());
+		out.write(header, 0, 4);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset+1] = (byte) (value >>> 16);
+		b[offset+2] = (byte) (value >>> 8);
+		b[offset+3] = (byte) value;
+	}
+}
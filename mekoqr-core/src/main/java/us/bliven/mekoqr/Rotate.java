@@ -45,6 +45,10 @@ public class Rotate {
 	private static final Logger logger = LoggerFactory.getLogger(Rotate.class);
 
 	public static final Map<BlockType, Map<BlockType,BlockType>> rotatedBlocks = initRotatedBlocks();
+	/** Block positions grouped into the 4-cycles of a clockwise rotation */
+	private static final int[] CYCLES = initCycles();
+	/** Block code after one clockwise rotation, indexed by unsigned code */
+	private static final short[] ROTATED_CODES = initRotatedCodes();
 	
 	public static void main(String[] args) {
 		if(args.length != 3) {
@@ -89,163 +93,171 @@ public class Rotate {
 	 * @param rotations number of rotations (clockwise when viewed from above)
 	 */
 	public static void rotate(MekoLevel level, int rotations) {
-		// Swap (x,z) for (SIZE-z,x)
+		int turns = rotations % 4;
+		if(turns <= 0) {
+			// Nothing moves, so keep the level (and its payload) untouched
+			return;
+		}
+		short[] codes = level.getCodes();
+		for(int i=0;i<CYCLES.length;i+=4) {
+			int pos1 = CYCLES[i];
+			int pos2 = CYCLES[i+1];
+			int pos3 = CYCLES[i+2];
+			int pos4 = CYCLES[i+3];
+			short code1 = rotateCode(codes[pos1], turns);
+			short code2 = rotateCode(codes[pos2], turns);
+			short code3 = rotateCode(codes[pos3], turns);
+			short code4 = rotateCode(codes[pos4], turns);
+			// Each block moves turns steps along its cycle
+			switch(turns) {
+			case 1:
+				codes[pos2] = code1; codes[pos3] = code2; codes[pos4] = code3; codes[pos1] = code4;
+				break;
+			case 2:
+				codes[pos3] = code1; codes[pos4] = code2; codes[pos1] = code3; codes[pos2] = code4;
+				break;
+			default:
+				codes[pos4] = code1; codes[pos1] = code2; codes[pos2] = code3; codes[pos3] = code4;
+				break;
+			}
+		}
+		level.codesModified();
+	}
+
+	/**
+	 * Get a block's code after rotating it clockwise in place
+	 * @param code block code
+	 * @param turns number of quarter turns, 0-3
+	 */
+	static short rotateCode(short code, int turns) {
+		for(int r=0;r<turns;r++) {
+			code = ROTATED_CODES[code & 0xffff];
+		}
+		return code;
+	}
+
+	/**
+	 * List the positions visited by a block as it is rotated clockwise,
+	 * as consecutive groups of four.
+	 * Rotation maps (x,z) to (SIZE-1-z,x).
+	 */
+	private static int[] initCycles() {
+		int[] cycles = new int[SIZE*SIZE*SIZE];
+		int i = 0;
 		for(int x=0;x<SIZE/2;x++) {
 			for(int z=0;z<SIZE/2;z++) {
 				for(int y=0;y<SIZE;y++) {
-					BlockType pos1 = level.getBlock(x, y, z);
-					BlockType pos2 = level.getBlock(SIZE-1-z,y,x);
-					BlockType pos3 = level.getBlock(SIZE-1-x,y,SIZE-1-z);
-					BlockType pos4 = level.getBlock(z,y,SIZE-1-x);
-
-					for(int r=0;r<rotations%4;r++) {
-						BlockType tmp = rotateBlock(pos4);
-						pos4 = rotateBlock(pos3);
-						pos3 = rotateBlock(pos2);
-						pos2 = rotateBlock(pos1);
-						pos1 = tmp;
-					}
-
-					level.setBlock(x, y, z, pos1);
-					level.setBlock(SIZE-1-z,y,x, pos2);
-					level.setBlock(SIZE-1-x,y,SIZE-1-z, pos3);
-					level.setBlock(z,y,SIZE-1-x, pos4);
+					cycles[i++] = index(x, y, z);
+					cycles[i++] = index(SIZE-1-z, y, x);
+					cycles[i++] = index(SIZE-1-x, y, SIZE-1-z);
+					cycles[i++] = index(z, y, SIZE-1-x);
+				}
+			}
+		}
+		return cycles;
+	}
+	private static int index(int x, int y, int z) {
+		return z << 8 | y << 4 | x;
+	}
+
+	/**
+	 * Compile {@link #rotatedBlocks} into a table of codes after one clockwise
+	 * rotation, indexed by unsigned code. Unmapped codes are unchanged.
+	 */
+	private static short[] initRotatedCodes() {
+		short[] rotated = new short[1<<16];
+		for(int code=0;code<rotated.length;code++) {
+			rotated[code] = (short) code;
+		}
+		for(Map.Entry<BlockType, Map<BlockType, BlockType>> parent : rotatedBlocks.entrySet()) {
+			Map<BlockType, BlockType> subMap = parent.getValue();
+			for(BlockType sub : parent.getKey().getSubtypes()) {
+				BlockType target = subMap.get(sub);
+				if(target == null) {
+					logger.error("Unknown rotation for subtype {} of {}",sub.getName(),parent.getKey().getName());
+					continue;
 				}
+				rotated[sub.getCode() & 0xffff] = target.getCode();
 			}
 		}
+		return rotated;
 	}
 
 	private static Map<BlockType, Map<BlockType, BlockType>> initRotatedBlocks() {
 		// Map parent -> Subtype -> rotated subtype
 		Map<BlockType, Map<BlockType, BlockType>> parentMap = new HashMap<>();
-		Map<BlockType, BlockType> subMap;
-		BlockType parent;
-		
-		parent = STONE_STAIR;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x02 ));
-		subMap.put(parent.getSubtype( (byte) 0x02 ), parent.getSubtype( (byte) 0x01 ));
-		subMap.put(parent.getSubtype( (byte) 0x01 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x04 ), parent.getSubtype( (byte) 0x07 ));
-		subMap.put(parent.getSubtype( (byte) 0x07 ), parent.getSubtype( (byte) 0x06 ));
-		subMap.put(parent.getSubtype( (byte) 0x06 ), parent.getSubtype( (byte) 0x05 ));
-		subMap.put(parent.getSubtype( (byte) 0x05 ), parent.getSubtype( (byte) 0x04 ));
-		subMap.put(parent.getSubtype( (byte) 0x10 ), parent.getSubtype( (byte) 0x13 ));
-		subMap.put(parent.getSubtype( (byte) 0x13 ), parent.getSubtype( (byte) 0x12 ));
-		subMap.put(parent.getSubtype( (byte) 0x12 ), parent.getSubtype( (byte) 0x11 ));
-		subMap.put(parent.getSubtype( (byte) 0x11 ), parent.getSubtype( (byte) 0x10 ));
-		parentMap.put(parent, subMap);
-
-		parent = STONE_WEDGE;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x02 ));
-		subMap.put(parent.getSubtype( (byte) 0x02 ), parent.getSubtype( (byte) 0x01 ));
-		subMap.put(parent.getSubtype( (byte) 0x01 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x04 ), parent.getSubtype( (byte) 0x07 ));
-		subMap.put(parent.getSubtype( (byte) 0x07 ), parent.getSubtype( (byte) 0x06 ));
-		subMap.put(parent.getSubtype( (byte) 0x06 ), parent.getSubtype( (byte) 0x05 ));
-		subMap.put(parent.getSubtype( (byte) 0x05 ), parent.getSubtype( (byte) 0x04 ));
-		subMap.put(parent.getSubtype( (byte) 0x10 ), parent.getSubtype( (byte) 0x13 ));
-		subMap.put(parent.getSubtype( (byte) 0x13 ), parent.getSubtype( (byte) 0x12 ));
-		subMap.put(parent.getSubtype( (byte) 0x12 ), parent.getSubtype( (byte) 0x11 ));
-		subMap.put(parent.getSubtype( (byte) 0x11 ), parent.getSubtype( (byte) 0x10 ));
-		parentMap.put(parent, subMap);
-
-		parent = SLIDER;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x14 ), parent.getSubtype( (byte) 0x14 ));
-		parentMap.put(parent, subMap);
-
-		parent = STONE_PILLAR;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x0C ), parent.getSubtype( (byte) 0x14 ));
-		subMap.put(parent.getSubtype( (byte) 0x14 ), parent.getSubtype( (byte) 0x0C ));
-		parentMap.put(parent, subMap);
-
-		parent = RAIL;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x14 ), parent.getSubtype( (byte) 0x14 ));
-		parentMap.put(parent, subMap);
-
-		parent = FENCE;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x04 ), parent.getSubtype( (byte) 0x07 ));
-		subMap.put(parent.getSubtype( (byte) 0x07 ), parent.getSubtype( (byte) 0x04 ));
-		subMap.put(parent.getSubtype( (byte) 0x10 ), parent.getSubtype( (byte) 0x13 ));
-		subMap.put(parent.getSubtype( (byte) 0x13 ), parent.getSubtype( (byte) 0x10 ));
-		parentMap.put(parent, subMap);
-
-		parent = CURVED_RAIL;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x02 ));
-		subMap.put(parent.getSubtype( (byte) 0x02 ), parent.getSubtype( (byte) 0x01 ));
-		subMap.put(parent.getSubtype( (byte) 0x01 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x04 ), parent.getSubtype( (byte) 0x07 ));
-		subMap.put(parent.getSubtype( (byte) 0x07 ), parent.getSubtype( (byte) 0x06 ));
-		subMap.put(parent.getSubtype( (byte) 0x06 ), parent.getSubtype( (byte) 0x05 ));
-		subMap.put(parent.getSubtype( (byte) 0x05 ), parent.getSubtype( (byte) 0x04 ));
-		subMap.put(parent.getSubtype( (byte) 0x10 ), parent.getSubtype( (byte) 0x13 ));
-		subMap.put(parent.getSubtype( (byte) 0x13 ), parent.getSubtype( (byte) 0x12 ));
-		subMap.put(parent.getSubtype( (byte) 0x12 ), parent.getSubtype( (byte) 0x11 ));
-		subMap.put(parent.getSubtype( (byte) 0x11 ), parent.getSubtype( (byte) 0x10 ));
-		parentMap.put(parent, subMap);
-
-		parent = R_BOT;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x02 ));
-		subMap.put(parent.getSubtype( (byte) 0x02 ), parent.getSubtype( (byte) 0x01 ));
-		subMap.put(parent.getSubtype( (byte) 0x01 ), parent.getSubtype( (byte) 0x00 ));
-		parentMap.put(parent, subMap);
-
-		parent = B_BOT;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x02 ));
-		subMap.put(parent.getSubtype( (byte) 0x02 ), parent.getSubtype( (byte) 0x01 ));
-		subMap.put(parent.getSubtype( (byte) 0x01 ), parent.getSubtype( (byte) 0x00 ));
-		parentMap.put(parent, subMap);
-
-		parent = MOTOR;
-		subMap = new HashMap<BlockType, BlockType>();
-		subMap.put(parent.getSubtype( (byte) 0x00 ), parent.getSubtype( (byte) 0x03 ));
-		subMap.put(parent.getSubtype( (byte) 0x03 ), parent.getSubtype( (byte) 0x02 ));
-		subMap.put(parent.getSubtype( (byte) 0x02 ), parent.getSubtype( (byte) 0x01 ));
-		subMap.put(parent.getSubtype( (byte) 0x01 ), parent.getSubtype( (byte) 0x00 ));
-		subMap.put(parent.getSubtype( (byte) 0x04 ), parent.getSubtype( (byte) 0x04 ));
-		subMap.put(parent.getSubtype( (byte) 0x0C ), parent.getSubtype( (byte) 0x0C ));
-		parentMap.put(parent, subMap);
 
-		return parentMap;
-	}
+		// Oriented blocks: upright, upside down, and on their side
+		for(BlockType parent : new BlockType[] {STONE_STAIR, STONE_WEDGE, GRASS_WEDGE, METAL_STAIR,
+				STONE_QUARTER, METAL_QUARTER, CURVED_RAIL}) {
+			Map<BlockType, BlockType> subMap = new HashMap<>();
+			cycle(subMap, parent, 0x00, 0x03, 0x02, 0x01);
+			cycle(subMap, parent, 0x04, 0x07, 0x06, 0x05);
+			cycle(subMap, parent, 0x10, 0x13, 0x12, 0x11);
+			parentMap.put(parent, subMap);
+		}
 
-	private static BlockType rotateBlock(BlockType blk) {
-		BlockType parent = blk.getParent();
-		// Top-level block; no variants
-		if(parent == null) {
-			return blk;
+		// Axis-aligned blocks
+		for(BlockType parent : new BlockType[] {SLIDER, RAIL}) {
+			Map<BlockType, BlockType> subMap = new HashMap<>();
+			cycle(subMap, parent, 0x00, 0x03);
+			cycle(subMap, parent, 0x14);
+			parentMap.put(parent, subMap);
 		}
-		// Check whether map has variants
-		if( !rotatedBlocks.containsKey(parent) ) {
-			// No variants mapped
-			return blk;
+		for(BlockType parent : new BlockType[] {STONE_PILLAR, STONE_PILLAR_1F, DRAGGABLE_PILLAR, METAL_PILLAR}) {
+			Map<BlockType, BlockType> subMap = new HashMap<>();
+			cycle(subMap, parent, 0x00);
+			cycle(subMap, parent, 0x0C, 0x14);
+			parentMap.put(parent, subMap);
 		}
-		
-		Map<BlockType, BlockType> variants = rotatedBlocks.get(parent);
-		if(!variants.containsKey(blk)) {
-			logger.error("Unknown subtype {} of {}",blk.getName(),parent.getName());
-			return blk;
+
+		Map<BlockType, BlockType> fence = new HashMap<>();
+		cycle(fence, FENCE, 0x00, 0x03);
+		cycle(fence, FENCE, 0x04, 0x07);
+		cycle(fence, FENCE, 0x10, 0x13);
+		parentMap.put(FENCE, fence);
+
+		// Half pillars: only the upright group is known. The upside down (0x04)
+		// and horizontal (0x0C, 0x14) groups are incomplete, so their rotations
+		// can't be derived and are left unmapped.
+		for(BlockType parent : new BlockType[] {STONE_HALF, METAL_HALF}) {
+			Map<BlockType, BlockType> subMap = new HashMap<>();
+			cycle(subMap, parent, 0x00, 0x03, 0x02, 0x01);
+			parentMap.put(parent, subMap);
+		}
+
+		// Facing S, E, N, W
+		for(BlockType parent : new BlockType[] {R_BOT, B_BOT}) {
+			Map<BlockType, BlockType> subMap = new HashMap<>();
+			cycle(subMap, parent, 0x00, 0x03, 0x02, 0x01);
+			parentMap.put(parent, subMap);
+		}
+		// Facing S, E, N, W, down or up
+		for(BlockType parent : new BlockType[] {MOTOR, WHEEL, METAL_WIN}) {
+			Map<BlockType, BlockType> subMap = new HashMap<>();
+			cycle(subMap, parent, 0x00, 0x03, 0x02, 0x01);
+			cycle(subMap, parent, 0x04);
+			cycle(subMap, parent, 0x0C);
+			parentMap.put(parent, subMap);
+		}
+
+		Map<BlockType, BlockType> zapper = new HashMap<>();
+		cycle(zapper, ZAPPER, 0x00);
+		parentMap.put(ZAPPER, zapper);
+
+		return parentMap;
+	}
+
+	/**
+	 * Map each subtype to the next one, and the last back to the first
+	 * @param subMap
+	 * @param parent
+	 * @param subtypes subtype values in order of clockwise rotation
+	 */
+	private static void cycle(Map<BlockType, BlockType> subMap, BlockType parent, int... subtypes) {
+		for(int i=0;i<subtypes.length;i++) {
+			int next = subtypes[(i+1) % subtypes.length];
+			subMap.put(parent.getSubtype( (byte) subtypes[i] ), parent.getSubtype( (byte) next ));
 		}
-		return variants.get(blk);
 	}
 }
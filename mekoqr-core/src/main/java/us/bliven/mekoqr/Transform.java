@@ -0,0 +1,227 @@
+package us.bliven.mekoqr;
+
+import static us.bliven.mekoqr.BlockType.*;
+import static us.bliven.mekoqr.MekoLevel.SIZE;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable combination of quarter turns, mirroring and translations.
+ *
+ * Transforms are built by chaining operations, each applied after the
+ * previous ones. The result is a single mapping, so a chain such as
+ * <pre>
+ * Transform.IDENTITY.mirrorX().rotate(1).toOrigin(level).apply(level)
+ * </pre>
+ * traverses the level only once. Blocks are re-oriented along with their
+ * positions.
+ */
+public final class Transform {
+	private static final Logger logger = LoggerFactory.getLogger(Transform.class);
+
+	public static final Transform IDENTITY = new Transform(1, 0, 0, 1, 0, 0, 0, 0, false);
+
+	/** One clockwise turn: (x,z) to (SIZE-1-z,x), as in {@link Rotate} */
+	private static final Transform QUARTER = new Transform(0, -1, 1, 0, SIZE-1, 0, 0, 1, false);
+	/** x to SIZE-1-x */
+	private static final Transform MIRROR_X = new Transform(-1, 0, 0, 1, SIZE-1, 0, 0, 0, true);
+	/** z to SIZE-1-z, which is mirroring x followed by a half turn */
+	private static final Transform MIRROR_Z = new Transform(1, 0, 0, -1, 0, 0, SIZE-1, 2, true);
+
+	/** Block code after mirroring x, indexed by unsigned code */
+	private static final short[] MIRRORED_CODES = initMirroredCodes();
+
+	// x' = xx*x + xz*z + tx; z' = zx*x + zz*z + tz; y' = y + ty
+	private final int xx, xz, zx, zz;
+	private final int tx, ty, tz;
+	// Block orientations are mirrored (in x) first, then turned
+	private final int turns;
+	private final boolean mirrored;
+
+	private Transform(int xx, int xz, int zx, int zz, int tx, int ty, int tz, int turns, boolean mirrored) {
+		this.xx = xx;
+		this.xz = xz;
+		this.zx = zx;
+		this.zz = zz;
+		this.tx = tx;
+		this.ty = ty;
+		this.tz = tz;
+		this.turns = turns & 3;
+		this.mirrored = mirrored;
+	}
+
+	/**
+	 * @param rotations number of clockwise quarter turns, viewed from above
+	 */
+	public Transform rotate(int rotations) {
+		Transform t = this;
+		for(int r = 0; r < (rotations & 3); r++) {
+			t = t.then(QUARTER);
+		}
+		return t;
+	}
+	/** Reverse the x axis */
+	public Transform mirrorX() {
+		return then(MIRROR_X);
+	}
+	/** Reverse the z axis */
+	public Transform mirrorZ() {
+		return then(MIRROR_Z);
+	}
+	public Transform translate(int dx, int dy, int dz) {
+		return then(new Transform(1, 0, 0, 1, dx, dy, dz, 0, false));
+	}
+
+	/**
+	 * Move the level's blocks so that their transformed bounds start at the origin
+	 * @param level level this transform will be applied to
+	 */
+	public Transform toOrigin(MekoLevel level) {
+		int[] bounds = transformBounds(level);
+		if(bounds == null) {
+			return this;
+		}
+		return translate(-bounds[0], -bounds[2], -bounds[4]);
+	}
+	/**
+	 * Center the level's transformed bounds horizontally. Heights are unchanged.
+	 * @param level level this transform will be applied to
+	 */
+	public Transform center(MekoLevel level) {
+		int[] bounds = transformBounds(level);
+		if(bounds == null) {
+			return this;
+		}
+		int dx = (SIZE - 1 - bounds[0] - bounds[1]) / 2;
+		int dz = (SIZE - 1 - bounds[4] - bounds[5]) / 2;
+		return translate(dx, 0, dz);
+	}
+
+	/**
+	 * Compose two transforms
+	 * @param next transform to apply after this one
+	 * @return the combined transform
+	 */
+	public Transform then(Transform next) {
+		int t = next.mirrored ? next.turns - turns : next.turns + turns;
+		return new Transform(
+				next.xx*xx + next.xz*zx,
+				next.xx*xz + next.xz*zz,
+				next.zx*xx + next.zz*zx,
+				next.zx*xz + next.zz*zz,
+				next.xx*tx + next.xz*tz + next.tx,
+				ty + next.ty,
+				next.zx*tx + next.zz*tz + next.tz,
+				t,
+				mirrored ^ next.mirrored);
+	}
+
+	public boolean isIdentity() {
+		return xx == 1 && xz == 0 && zx == 0 && zz == 1
+				&& tx == 0 && ty == 0 && tz == 0
+				&& turns == 0 && !mirrored;
+	}
+
+	/**
+	 * Transform a level in a single pass. Blocks moved outside the level are dropped.
+	 * @param level source level, which is not modified
+	 * @return a new level with the same title and author
+	 */
+	public MekoLevel apply(MekoLevel level) {
+		short[] src = level.getCodes();
+		short[] dest = new short[src.length];
+		int dropped = 0;
+		for(int i = 0; i < src.length; i++) {
+			short code = src[i];
+			if(code == 0) {
+				continue;
+			}
+			int x = i & 0xf;
+			int y = (i >> 4) & 0xf;
+			int z = (i >> 8) & 0xf;
+			int x2 = xx*x + xz*z + tx;
+			int y2 = y + ty;
+			int z2 = zx*x + zz*z + tz;
+			if((x2 | y2 | z2) < 0 || x2 >= SIZE || y2 >= SIZE || z2 >= SIZE) {
+				dropped++;
+				continue;
+			}
+			dest[z2 << 8 | y2 << 4 | x2] = orient(code);
+		}
+		if(dropped > 0) {
+			logger.debug("Dropped {} blocks outside the level", dropped);
+		}
+		return new MekoLevel(level.getTitle(), level.getAuthor(), dest);
+	}
+
+	private short orient(short code) {
+		if(mirrored) {
+			code = MIRRORED_CODES[code & 0xffff];
+		}
+		return Rotate.rotateCode(code, turns);
+	}
+
+	/**
+	 * @return bounds of the transformed blocks, as from {@link MekoLevel#getBounds()},
+	 *  or null for an empty level
+	 */
+	private int[] transformBounds(MekoLevel level) {
+		int[] b = level.getBounds();
+		if(b[0] > b[1]) {
+			return null;
+		}
+		// Opposite corners remain opposite
+		int x1 = xx*b[0] + xz*b[4] + tx;
+		int x2 = xx*b[1] + xz*b[5] + tx;
+		int z1 = zx*b[0] + zz*b[4] + tz;
+		int z2 = zx*b[1] + zz*b[5] + tz;
+		return new int[] {Math.min(x1, x2), Math.max(x1, x2), b[2] + ty, b[3] + ty,
+				Math.min(z1, z2), Math.max(z1, z2)};
+	}
+
+	/**
+	 * Build the mirror table. Orientations 0 and 2 lie along x, matching
+	 * Rail(X), so mirroring x swaps them. Corner pieces are assumed to span
+	 * orientations k and k+1.
+	 */
+	private static short[] initMirroredCodes() {
+		short[] mirrored = new short[1<<16];
+		for(int code=0;code<mirrored.length;code++) {
+			mirrored[code] = (short) code;
+		}
+		// Facing a direction
+		for(BlockType parent : new BlockType[] {STONE_STAIR, STONE_WEDGE, GRASS_WEDGE, METAL_STAIR}) {
+			swap(mirrored, parent, 0x00, 0x02);
+			swap(mirrored, parent, 0x04, 0x06);
+			swap(mirrored, parent, 0x10, 0x12);
+		}
+		for(BlockType parent : new BlockType[] {R_BOT, B_BOT, MOTOR, WHEEL, METAL_WIN}) {
+			swap(mirrored, parent, 0x00, 0x02);
+		}
+		for(BlockType parent : new BlockType[] {STONE_HALF, METAL_HALF}) {
+			swap(mirrored, parent, 0x00, 0x02);
+			swap(mirrored, parent, 0x14, 0x16);
+		}
+		// Corners
+		for(BlockType parent : new BlockType[] {CURVED_RAIL, STONE_QUARTER, METAL_QUARTER}) {
+			for(int group : new int[] {0x00, 0x04, 0x10}) {
+				swap(mirrored, parent, group, group+1);
+				swap(mirrored, parent, group+2, group+3);
+			}
+		}
+		return mirrored;
+	}
+	private static void swap(short[] table, BlockType parent, int sub1, int sub2) {
+		short code1 = parent.getSubtype((byte) sub1).getCode();
+		short code2 = parent.getSubtype((byte) sub2).getCode();
+		table[code1 & 0xffff] = code2;
+		table[code2 & 0xffff] = code1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Transform[x'=%d*x%+d*z%+d, y'=y%+d, z'=%d*x%+d*z%+d, turns=%d, mirrored=%b]",
+				xx, xz, tx, ty, zx, zz, tz, turns, mirrored);
+	}
+}
@@ -0,0 +1,63 @@
+package us.bliven.mekoqr;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded pools of zlib {@link Inflater} and {@link Deflater} instances.
+ *
+ * Both hold native memory, so creating one per level is comparatively
+ * expensive. Borrowed instances are reset before being returned to the pool.
+ * If the pool is full, released instances are simply ended.
+ */
+final class ZlibPool {
+	private ZlibPool() {}
+
+	private static final int CAPACITY = 2*Runtime.getRuntime().availableProcessors();
+
+	private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(CAPACITY);
+	private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(CAPACITY);
+
+	/**
+	 * Get a zlib-wrapped inflater. Must be returned with {@link #release(Inflater)}
+	 * @return an Inflater in its initial state
+	 */
+	static Inflater inflater() {
+		Inflater inflater = inflaters.poll();
+		if(inflater == null) {
+			inflater = new Inflater(false);
+		}
+		return inflater;
+	}
+
+	static void release(Inflater inflater) {
+		inflater.reset();
+		if(!inflaters.offer(inflater)) {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Get a zlib-wrapped deflater. Must be returned with {@link #release(Deflater)}
+	 * @param level compression level, 0-9
+	 * @return a Deflater in its initial state, with the default strategy
+	 */
+	static Deflater deflater(int level) {
+		Deflater deflater = deflaters.poll();
+		if(deflater == null) {
+			return new Deflater(level, false);
+		}
+		deflater.setLevel(level);
+		return deflater;
+	}
+
+	static void release(Deflater deflater) {
+		deflater.reset();
+		deflater.setStrategy(Deflater.DEFAULT_STRATEGY);
+		if(!deflaters.offer(deflater)) {
+			deflater.end();
+		}
+	}
+}
@@ -29,21 +29,40 @@ import us.bliven.mekoqr.MekoLevel;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
  
 public class JsonTransformer {
 	private Gson gson;
 
 	public JsonTransformer() {
+		this(true);
+	}
+
+	/**
+	 * @param pretty Whether to pretty-print the output. Compact output
+	 *  contains no newlines and so is suitable for line-delimited json.
+	 */
+	public JsonTransformer(boolean pretty) {
 		super();
-		gson = new GsonBuilder()
+		GsonBuilder builder = new GsonBuilder()
 		.registerTypeAdapter(MekoLevel.class, new MekoLevelSerializer())
-		.registerTypeAdapter(BlockType.class, new BlockTypeSerializer())
-		.setPrettyPrinting()
-		.create();
+		.registerTypeAdapter(BlockType.class, new BlockTypeSerializer());
+		if(pretty) {
+			builder.setPrettyPrinting();
+		}
+		gson = builder.create();
 	}
 
 	public String render(Object model) {
 		String json = gson.toJson(model);
 		return json;
 	}
+
+	public String render(JsonElement element) {
+		return gson.toJson(element);
+	}
+
+	public JsonElement toJsonTree(Object model) {
+		return gson.toJsonTree(model);
+	}
 }
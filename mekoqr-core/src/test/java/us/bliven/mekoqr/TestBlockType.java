@@ -0,0 +1,78 @@
+package us.bliven.mekoqr;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class TestBlockType {
+
+	@Test
+	public void testCodes() {
+		for(int i=0;i<256;i++) {
+			BlockType blk = BlockType.fromByte((byte)i);
+			assertEquals((byte)i, blk.getValue());
+			assertSame(blk, BlockType.fromCode(blk.getCode()));
+			for(BlockType sub : blk.getSubtypes()) {
+				assertSame(blk, sub.getParent());
+				assertSame(sub, blk.getSubtype(sub.getValue()));
+				assertSame(sub, BlockType.fromCode(sub.getCode()));
+				assertArrayEquals(new byte[] {blk.getValue(),sub.getValue()}, sub.getValues());
+				assertArrayEquals(sub.getValues(), sub.values());
+				assertNotSame(sub.values(), sub.getValues());
+			}
+		}
+		assertEquals(0, BlockType.AIR.getCode());
+		assertEquals("Blk99", BlockType.fromByte((byte)0x99).getName());
+	}
+
+	@Test
+	public void testConcurrentFromByte() throws Exception {
+		final int threads = 16;
+		final int rounds = 2000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<BlockType[]>> results = new ArrayList<>();
+			for(int t=0;t<threads;t++) {
+				final int offset = t*17;
+				Callable<BlockType[]> task = () -> {
+					start.await();
+					BlockType[] seen = new BlockType[256];
+					for(int r=0;r<rounds;r++) {
+						for(int i=0;i<256;i++) {
+							int b = (i+offset) & 0xff;
+							BlockType blk = BlockType.fromByte((byte)b);
+							if(seen[b] == null) {
+								seen[b] = blk;
+							} else if(seen[b] != blk) {
+								throw new AssertionError("Inconsistent type for "+b);
+							}
+						}
+					}
+					return seen;
+				};
+				results.add(executor.submit(task));
+			}
+			start.countDown();
+
+			BlockType[] first = results.get(0).get();
+			for(Future<BlockType[]> result : results) {
+				BlockType[] seen = result.get();
+				for(int i=0;i<256;i++) {
+					assertSame(first[i], seen[i]);
+					assertEquals((byte)i, seen[i].getValue());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package us.bliven.mekoqr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * Levels and images shared by the tests
+ */
+class TestLevels {
+
+	/**
+	 * @return a level containing only air
+	 */
+	static MekoLevel empty(String title, String author) {
+		BlockType[] blocks = new BlockType[MekoLevel.SIZE*MekoLevel.SIZE*MekoLevel.SIZE];
+		Arrays.fill(blocks, BlockType.AIR);
+		try {
+			return new MekoLevel(title, author, blocks);
+		} catch(DataFormatException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return a level with a single stone block at the origin
+	 */
+	static MekoLevel stone(String title, String author) {
+		MekoLevel level = empty(title, author);
+		level.setBlock(0, 0, 0, BlockType.STONE);
+		return level;
+	}
+
+	/**
+	 * Render {@link #stone(String, String)} as a QR code
+	 * @return luminance of the code, with a quiet zone
+	 */
+	static LuminanceSource render(String title, String author) throws Exception {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		new MekoWriter().write(png, stone(title, author));
+		return new PngDecoder().decode(new ByteArrayInputStream(png.toByteArray()), 0);
+	}
+}
@@ -0,0 +1,70 @@
+package us.bliven.mekoqr;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestMekoBatch {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File root;
+	private Path top, notes, shallow, deep;
+
+	@Before
+	public void setUp() throws Exception {
+		root = folder.getRoot();
+		top = folder.newFile("top.png").toPath();
+		notes = folder.newFile("notes.txt").toPath();
+		folder.newFolder("sub", "deep");
+		shallow = folder.newFile("sub/shallow.png").toPath();
+		deep = folder.newFile("sub/deep/deep.png").toPath();
+	}
+
+	private String path(String relative) {
+		return new File(root, relative).getPath();
+	}
+
+	@Test
+	public void testFile() throws Exception {
+		// Existing files are kept even if they aren't images
+		assertEquals(Collections.singletonList(notes), MekoBatch.expand(path("notes.txt")));
+	}
+
+	@Test
+	public void testDirectory() throws Exception {
+		List<Path> expected = Arrays.asList(deep, shallow, top);
+		assertEquals(expected, MekoBatch.expand(root.getPath()));
+	}
+
+	@Test
+	public void testGlob() throws Exception {
+		// * does not match subdirectories
+		assertEquals(Collections.singletonList(top), MekoBatch.expand(path("*.png")));
+		assertEquals(Collections.singletonList(deep), MekoBatch.expand(path("sub/*/*.png")));
+	}
+
+	@Test
+	public void testRecursiveGlob() throws Exception {
+		List<Path> expected = Arrays.asList(deep, shallow);
+		assertEquals(expected, MekoBatch.expand(path("**/*.png")));
+	}
+
+	@Test
+	public void testMissing() throws Exception {
+		// Missing files are kept so that an error gets reported
+		Path missing = new File(root, "missing.png").toPath();
+		assertEquals(Collections.singletonList(missing), MekoBatch.expand(path("missing.png")));
+		assertTrue(MekoBatch.expand(path("missing/*.png")).isEmpty());
+	}
+}
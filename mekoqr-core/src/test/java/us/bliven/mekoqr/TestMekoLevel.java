@@ -0,0 +1,30 @@
+package us.bliven.mekoqr;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestMekoLevel {
+
+	@Test
+	public void testOccupancy() throws Exception {
+		MekoLevel level = TestLevels.empty("Occupancy", "Test");
+		assertTrue(level.isEmpty());
+		assertArrayEquals(new int[] {16, 0, 16, 0, 16, 0}, level.getBounds());
+
+		level.setBlock(2, 3, 4, BlockType.STONE);
+		level.setBlock(9, 1, 7, BlockType.STONE);
+		level.setBlock(9, 1, 7, BlockType.BRICK);
+		assertEquals(2, level.getBlockCount());
+		assertArrayEquals(new int[] {2, 9, 1, 3, 4, 7}, level.getBounds());
+
+		level.setBlock(9, 1, 7, BlockType.AIR);
+		assertEquals(1, level.getBlockCount());
+		assertArrayEquals(new int[] {2, 2, 3, 3, 4, 4}, level.getBounds());
+
+		// Direct edits are recounted
+		Rotate.rotate(level, 1);
+		assertArrayEquals(new int[] {11, 11, 3, 3, 2, 2}, level.getBounds());
+		assertEquals(1, level.getBlocks().size());
+	}
+}
@@ -27,11 +27,21 @@ package us.bliven.mekoqr;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.DataFormatException;
 import java.util.zip.ZipException;
 
 import org.junit.Test;
 
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
 public class TestMekoReader {
 
 	@Test
@@ -54,7 +64,7 @@ public class TestMekoReader {
 		assertEquals("Wrong title",correctTitle,title);
 		
 		// We use different compression settings, so this won't match compressed exactly
-		byte[] recompressed = new byte[len];
+		byte[] recompressed = new byte[MekoWriter.deflateBound(len)];
 		int recomplen = MekoWriter.deflateWrapped(uncompressed, recompressed);
 		assertTrue(recomplen>2);
 		assertTrue(recompressed[0] == 0x78);
@@ -78,7 +88,7 @@ public class TestMekoReader {
 		}
 		
 		// compress
-		byte[] compressed = new byte[300];
+		byte[] compressed = new byte[MekoWriter.deflateBound(plaintext.length)];
 		int compressedlen = MekoWriter.deflateWrapped(plaintext, compressed);
 		assertTrue(compressedlen>0);
 		
@@ -106,4 +116,226 @@ public class TestMekoReader {
 
 	}
 
+	@Test
+	public void testInflateLimit() throws ZipException {
+		byte[] plaintext = new byte[256];
+		for( int i = 0;i<plaintext.length;i++) {
+			plaintext[i] = (byte)i;
+		}
+		byte[] compressed = new byte[MekoWriter.deflateBound(plaintext.length)];
+		int compressedlen = MekoWriter.deflateWrapped(plaintext, compressed);
+
+		// Exactly large enough
+		byte[] uncompressed = new byte[plaintext.length];
+		int len = MekoReader.inflate(compressed, compressedlen, uncompressed);
+		assertEquals(plaintext.length, len);
+
+		// Too small
+		try {
+			MekoReader.inflate(compressed, 0, compressedlen, new byte[300], plaintext.length-1);
+			fail("Exceeded output limit");
+		} catch(ZipException e) {}
+
+		// Truncated input
+		try {
+			MekoReader.inflate(compressed, compressedlen-10, new byte[300]);
+			fail("Accepted truncated input");
+		} catch(ZipException e) {}
+	}
+
+	@Test
+	public void testReadLuminance() throws Exception {
+		LuminanceSource lum = TestLevels.render("Frame", "Camera");
+		int width = lum.getWidth();
+		int height = lum.getHeight();
+		assertEquals(600, width);
+		assertEquals(600, height);
+
+		MekoReader reader = new MekoReader();
+		MekoLevel plain = reader.readQR(lum.getMatrix(), width, height);
+		assertEquals("Frame", plain.getTitle());
+		assertEquals(BlockType.STONE, plain.getBlock(0, 0, 0));
+
+		// Direct buffer with padded rows, starting partway through
+		int stride = width + 13;
+		int offset = 7;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(offset + stride*height);
+		for(int y=0;y<height;y++) {
+			buffer.position(offset + y*stride);
+			buffer.put(lum.getMatrix(), y*width, width);
+		}
+		buffer.position(offset);
+		MekoLevel direct = reader.readQR(buffer, stride, 0, 0, width, height);
+		assertEquals("Camera", direct.getAuthor());
+		assertEquals(offset, buffer.position());
+	}
+
+	@Test
+	public void testReadAll() throws Exception {
+		LuminanceSource[] codes = {TestLevels.render("One", "Sheet"), TestLevels.render("Two", "Sheet"), TestLevels.render("One", "Sheet")};
+		int size = codes[0].getWidth();
+		int width = size*codes.length, height = size;
+		byte[] sheet = new byte[width*height];
+		for(int i=0;i<codes.length;i++) {
+			for(int y=0;y<size;y++) {
+				System.arraycopy(codes[i].getMatrix(), y*size, sheet, y*width + i*size, size);
+			}
+		}
+		List<MekoLevel> levels = new MekoReader().readAllQR(
+				new PlanarYUVLuminanceSource(sheet, width, height, 0, 0, width, height, false));
+		Set<String> titles = new HashSet<>();
+		for(MekoLevel level : levels) {
+			titles.add(level.getTitle());
+		}
+		assertEquals(2, levels.size());
+		assertEquals(new HashSet<>(Arrays.asList("One", "Two")), titles);
+	}
+
+	@Test
+	public void testReadPayload() throws Exception {
+		byte[] encoded = new byte[LevelDecoder.MAX_UNCOMPRESSED];
+		int len = MekoWriter.encodeLevel(TestLevels.stone("Bytes", "Payload"), encoded);
+		byte[] compressed = new byte[MekoWriter.deflateBound(len)];
+		int compressedlen = MekoWriter.deflateWrapped(Arrays.copyOf(encoded, len), compressed);
+		byte[] raw = new byte[compressedlen+4];
+		System.arraycopy(MekoReader.HEADER, 0, raw, 0, 4);
+		System.arraycopy(compressed, 0, raw, 4, compressedlen);
+
+		MekoReader reader = new MekoReader(true, false);
+
+		MekoLevel level = reader.readPayload(raw);
+		assertEquals("Bytes", level.getTitle());
+		assertEquals(BlockType.STONE, level.getBlock(0, 0, 0));
+
+		// Bare zlib stream gets the header restored
+		level = reader.readPayload(Arrays.copyOfRange(raw, 4, raw.length));
+		assertEquals("Payload", level.getAuthor());
+		assertArrayEquals(raw, level.getRawData());
+
+		level = reader.readPayloadHex(Utils.bytesToHex(raw));
+		assertEquals("Bytes", level.getTitle());
+		level = reader.readPayloadBase64(Base64.getMimeEncoder().encodeToString(raw));
+		assertEquals("Bytes", level.getTitle());
+
+		try {
+			reader.readPayloadHex("01 13 0D FC 7");
+			fail("Accepted odd hex");
+		} catch(DataFormatException e) {}
+		try {
+			reader.readPayloadHex("DEADBEEF0102030405060708");
+			fail("Accepted a payload without the level header");
+		} catch(DataFormatException e) {}
+		try {
+			reader.readPayloadHex("01130DFC78");
+			fail("Accepted a truncated payload");
+		} catch(DataFormatException e) {}
+
+		// Lazy levels inflate blocks on demand
+		reader.setLazy(true);
+		level = reader.readPayload(raw);
+		assertTrue(level.isLazy());
+		MekoLevel copy = new MekoLevel(level);
+		assertEquals("Bytes", level.getTitle());
+		assertEquals(BlockType.STONE, level.getBlock(0, 0, 0));
+		assertFalse(level.isLazy());
+		// Copies inflate separately
+		assertTrue(copy.isLazy());
+		assertEquals(BlockType.STONE, copy.getBlock(0, 0, 0));
+
+		level = reader.readPayload(Arrays.copyOf(raw, raw.length-8));
+		assertEquals("Payload", level.getAuthor());
+		try {
+			level.getBlocks();
+			fail("Inflated truncated blocks");
+		} catch(IllegalStateException e) {}
+	}
+
+	@Test
+	public void testCompression() throws Exception {
+		MekoLevel level = TestLevels.empty("Dense", "Compression");
+		for(int i=0;i<MekoLevel.SIZE*MekoLevel.SIZE*MekoLevel.SIZE;i+=7) {
+			level.setBlock(i & 0xf, (i >> 4) & 0xf, i >> 8, BlockType.STONE);
+		}
+		MekoWriter writer = new MekoWriter();
+		byte[] fast = writer.encode(level, MekoWriter.Compression.FAST);
+		byte[] smallest = writer.encode(level, MekoWriter.Compression.SMALLEST);
+		assertTrue(smallest.length <= fast.length);
+		for(byte[] payload : new byte[][] {fast, smallest}) {
+			assertEquals(0x78, payload[4] & 0xff);
+			assertEquals(0x01, payload[5]);
+			MekoLevel decoded = new MekoReader().readPayload(payload);
+			assertEquals("Compression", decoded.getAuthor());
+			assertEquals(BlockType.STONE, decoded.getBlock(7, 0, 0));
+		}
+		assertTrue(MekoWriter.getQRVersion(smallest, smallest.length)
+				<= MekoWriter.getQRVersion(fast, fast.length));
+
+		char[] title = new char[256];
+		Arrays.fill(title, 'x');
+		level.setTitle(new String(title));
+		try {
+			writer.encode(level, MekoWriter.Compression.FAST);
+			fail("Encoded a title too long for its length byte");
+		} catch(IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void testReuseRaw() throws Exception {
+		MekoWriter writer = new MekoWriter();
+		byte[] smallest = writer.encode(TestLevels.stone("Reuse", "Raw"), MekoWriter.Compression.SMALLEST);
+
+		MekoLevel level = new MekoReader(true, false).readPayload(smallest);
+		// Unmodified levels keep their original payload
+		Rotate.rotate(level, 4);
+		level.setBlock(0, 0, 0, BlockType.STONE);
+		assertArrayEquals(smallest, writer.encode(level, MekoWriter.Compression.FAST));
+
+		// Payloads set by callers are not trusted
+		MekoLevel unverified = new MekoReader().readPayload(smallest);
+		unverified.setRawData(new byte[] {1, 2, 3});
+		assertEquals(BlockType.STONE, new MekoReader().readPayload(
+				writer.encode(unverified, MekoWriter.Compression.FAST)).getBlock(0, 0, 0));
+
+		level.setBlock(1, 0, 0, BlockType.STONE);
+		assertNull(level.getRawData());
+		MekoLevel decoded = new MekoReader().readPayload(writer.encode(level, MekoWriter.Compression.FAST));
+		assertEquals(BlockType.STONE, decoded.getBlock(1, 0, 0));
+	}
+
+	@Test
+	public void testRaceError() throws Exception {
+		LuminanceSource lum = TestLevels.render("Race", "Error");
+		// Fails in the ROTATED tier only
+		LuminanceSource broken = new LuminanceSource(lum.getWidth(), lum.getHeight()) {
+			@Override
+			public byte[] getRow(int y, byte[] row) {
+				return lum.getRow(y, row);
+			}
+			@Override
+			public byte[] getMatrix() {
+				return lum.getMatrix();
+			}
+			@Override
+			public boolean isRotateSupported() {
+				return true;
+			}
+			@Override
+			public LuminanceSource rotateCounterClockwise() {
+				throw new ArrayIndexOutOfBoundsException();
+			}
+		};
+		MekoReader reader = new MekoReader();
+		reader.setRacePool(ForkJoinPool.commonPool());
+		reader.setTiers(DetectionTier.ROTATED, DetectionTier.GLOBAL);
+		assertEquals("Race", reader.readQR(broken).getTitle());
+
+		reader.setTiers(DetectionTier.ROTATED);
+		try {
+			reader.readQR(broken);
+			fail("Expected the tier's exception");
+		} catch(ArrayIndexOutOfBoundsException e) {
+			// unwrapped, as when run sequentially
+		}
+	}
+
 }
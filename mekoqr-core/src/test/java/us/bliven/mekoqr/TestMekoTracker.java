@@ -0,0 +1,51 @@
+package us.bliven.mekoqr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+
+public class TestMekoTracker {
+
+	@Test
+	public void testTrack() throws Exception {
+		LuminanceSource code = TestLevels.render("Video", "Tracker");
+
+		// Place the code off-center in a larger frame
+		int width = 1280, height = 960;
+		byte[] frame = new byte[width*height];
+		Arrays.fill(frame, (byte) 0xff);
+		for(int y=0;y<code.getHeight();y++) {
+			System.arraycopy(code.getMatrix(), y*code.getWidth(), frame, (y+200)*width + 500, code.getWidth());
+		}
+
+		MekoTracker tracker = new MekoTracker();
+		MekoLevel first = tracker.track(frame, width, height);
+		assertEquals("Video", first.getTitle());
+		assertEquals(1, tracker.getFullScans());
+		assertTrue(tracker.isTracking());
+		assertTrue(tracker.getLastPoints()[0].getX() > 500);
+
+		// Edits to a returned level don't leak into later frames
+		first.setBlock(0, 0, 0, BlockType.AIR);
+		MekoLevel second = tracker.track(frame, width, height);
+		assertNotSame(first, second);
+		assertEquals("Video", second.getTitle());
+		assertEquals(BlockType.STONE, second.getBlock(0, 0, 0));
+		assertEquals(1, second.getBlockCount());
+		assertEquals(1, tracker.getFullScans());
+		assertEquals(1, tracker.getRegionHits());
+		assertEquals(1, tracker.getCacheHits());
+
+		// Losing the code resets tracking
+		try {
+			tracker.track(new byte[width*height], width, height);
+			fail("Found a code in an empty frame");
+		} catch(NotFoundException e) {}
+		assertFalse(tracker.isTracking());
+	}
+}
@@ -0,0 +1,189 @@
+package us.bliven.mekoqr;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+
+public class TestPngDecoder {
+
+	@Test
+	public void testColorTypes() throws IOException {
+		int[] types = {
+				BufferedImage.TYPE_BYTE_GRAY,
+				BufferedImage.TYPE_BYTE_BINARY,
+				BufferedImage.TYPE_BYTE_INDEXED,
+				BufferedImage.TYPE_INT_RGB,
+				BufferedImage.TYPE_INT_ARGB,
+		};
+		for(int type : types) {
+			BufferedImage img = new BufferedImage(37, 23, type);
+			for(int y=0;y<img.getHeight();y++) {
+				for(int x=0;x<img.getWidth();x++) {
+					// opaque gradient, plus a transparent corner
+					int rgb = x < 3 && y < 3 ? 0x00102030 : 0xff000000 | (x*7) << 16 | (y*11) << 8 | (x*y & 0xff);
+					img.setRGB(x, y, rgb);
+				}
+			}
+			byte[] png = toPng(img);
+			LuminanceSource expected = new BufferedImageLuminanceSource(ImageIO.read(new ByteArrayInputStream(png)));
+			LuminanceSource actual = new PngDecoder().decode(new ByteArrayInputStream(png), 0);
+			assertNotNull(actual);
+			assertEquals(expected.getWidth(), actual.getWidth());
+			assertEquals(expected.getHeight(), actual.getHeight());
+			assertArrayEquals("Type "+type, expected.getMatrix(), actual.getMatrix());
+		}
+	}
+
+	@Test
+	public void testSubsample() throws IOException {
+		BufferedImage img = new BufferedImage(100, 41, BufferedImage.TYPE_BYTE_GRAY);
+		for(int y=0;y<img.getHeight();y++) {
+			for(int x=0;x<img.getWidth();x++) {
+				img.getRaster().setSample(x, y, 0, x+y);
+			}
+		}
+		LuminanceSource lum = new PngDecoder().decode(new ByteArrayInputStream(toPng(img)), 30);
+		// factor 4
+		assertEquals(25, lum.getWidth());
+		assertEquals(11, lum.getHeight());
+		byte[] matrix = lum.getMatrix();
+		assertEquals(4*3+4*10, matrix[10*25+3] & 0xff);
+	}
+
+	@Test
+	public void testNotPng() throws IOException {
+		BufferedImage img = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(img, "bmp", out);
+		assertNull(new PngDecoder().decode(new ByteArrayInputStream(out.toByteArray()), 0));
+		assertNull(new PngDecoder().decode(new ByteArrayInputStream(new byte[3]), 0));
+	}
+
+	@Test
+	public void testEncoder() throws IOException {
+		int width = 61, height = 19;
+		int stride = (width+7)/8;
+		byte[] pixels = new byte[stride*height];
+		for(int i=0;i<pixels.length;i++) {
+			pixels[i] = (byte) (i*37 ^ i >> 3);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PngEncoder().write(out, pixels, width, height, stride);
+		byte[] png = out.toByteArray();
+
+		// Deterministic, including with a pooled deflater
+		out.reset();
+		new PngEncoder().write(out, pixels, width, height, stride);
+		assertArrayEquals(png, out.toByteArray());
+
+		BufferedImage img = ImageIO.read(new ByteArrayInputStream(png));
+		LuminanceSource lum = new PngDecoder().decode(new ByteArrayInputStream(png), 0);
+		for(int y=0;y<height;y++) {
+			for(int x=0;x<width;x++) {
+				boolean white = (pixels[y*stride + x/8] & 0x80 >>> (x%8)) != 0;
+				assertEquals(white ? 0xffffff : 0, img.getRGB(x, y) & 0xffffff);
+				assertEquals(white ? 0xff : 0, lum.getMatrix()[y*width+x] & 0xff);
+			}
+		}
+	}
+
+	@Test
+	public void testInvalidDepth() throws IOException {
+		// {color type, depth}: 16-bit palette, 4-bit RGB
+		int[][] invalid = {{3, 16}, {2, 4}};
+		for(int[] params : invalid) {
+			byte[] png = toPng(new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_GRAY));
+			png[24] = (byte) params[1];
+			png[25] = (byte) params[0];
+			try {
+				new PngDecoder().decode(new ByteArrayInputStream(png), 0);
+				fail("Accepted depth "+params[1]+" for color type "+params[0]);
+			} catch(IOException e) {
+				assertTrue(e.getMessage().startsWith("Unsupported PNG"));
+			}
+		}
+	}
+
+	@Test
+	public void testTransparentColor() throws IOException {
+		// {image type, tRNS chunk data}
+		Object[][] cases = {
+				{BufferedImage.TYPE_BYTE_GRAY, new byte[] {0x00, 0x40}},
+				{BufferedImage.TYPE_USHORT_GRAY, new byte[] {0x40, 0x40}},
+				{BufferedImage.TYPE_INT_RGB, new byte[] {0x00, 0x10, 0x00, 0x20, 0x00, 0x30}},
+		};
+		for(Object[] params : cases) {
+			int type = (Integer) params[0];
+			BufferedImage img = new BufferedImage(19, 11, type);
+			for(int y=0;y<img.getHeight();y++) {
+				for(int x=0;x<img.getWidth();x++) {
+					// the tRNS color in a corner, gradient elsewhere
+					int rgb = x < 3 && y < 3 ? 0x102030 : (x*7) << 16 | (y*11) << 8 | (x*y & 0xff);
+					if(type == BufferedImage.TYPE_INT_RGB) {
+						img.setRGB(x, y, rgb);
+					} else {
+						img.getRaster().setSample(x, y, 0, x < 3 && y < 3 ? 0x4040 : x*y*50);
+					}
+				}
+			}
+			byte[] png = withChunk(toPng(img), "tRNS", (byte[]) params[1]);
+			BufferedImage read = ImageIO.read(new ByteArrayInputStream(png));
+			LuminanceSource actual = new PngDecoder().decode(new ByteArrayInputStream(png), 0);
+			assertEquals(0xff, actual.getMatrix()[0] & 0xff);
+			if(type == BufferedImage.TYPE_INT_RGB) {
+				LuminanceSource expected = new BufferedImageLuminanceSource(read);
+				assertArrayEquals(expected.getMatrix(), actual.getMatrix());
+				continue;
+			}
+			// ImageIO converts gray with alpha through a linear color space,
+			// so only compare transparency and the raw samples
+			int shift = type == BufferedImage.TYPE_USHORT_GRAY ? 8 : 0;
+			for(int y=0;y<img.getHeight();y++) {
+				for(int x=0;x<img.getWidth();x++) {
+					boolean transparent = read.getRGB(x, y) >>> 24 == 0;
+					int expected = transparent ? 0xff : img.getRaster().getSample(x, y, 0) >> shift;
+					assertEquals("Type "+type, expected, actual.getMatrix()[y*img.getWidth()+x] & 0xff);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Insert a chunk right after the IHDR chunk
+	 */
+	private static byte[] withChunk(byte[] png, String type, byte[] data) {
+		int at = PngDecoder.HEADER_LENGTH;
+		byte[] chunk = new byte[12 + data.length];
+		chunk[3] = (byte) data.length;
+		System.arraycopy(type.getBytes(), 0, chunk, 4, 4);
+		System.arraycopy(data, 0, chunk, 8, data.length);
+		CRC32 crc = new CRC32();
+		crc.update(chunk, 4, 4 + data.length);
+		long value = crc.getValue();
+		for(int i=0;i<4;i++) {
+			chunk[8 + data.length + i] = (byte) (value >>> (24 - 8*i));
+		}
+		byte[] out = new byte[png.length + chunk.length];
+		System.arraycopy(png, 0, out, 0, at);
+		System.arraycopy(chunk, 0, out, at, chunk.length);
+		System.arraycopy(png, at, out, at + chunk.length, png.length - at);
+		return out;
+	}
+
+	private static byte[] toPng(BufferedImage img) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", out);
+		return out.toByteArray();
+	}
+}
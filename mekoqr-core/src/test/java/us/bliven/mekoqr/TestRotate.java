@@ -0,0 +1,74 @@
+package us.bliven.mekoqr;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestRotate {
+
+	@Test
+	public void testRotate() throws Exception {
+		MekoLevel level = TestLevels.empty("Rotate", "Test");
+		level.setBlock(1, 2, 3, BlockType.STONE_STAIR.getSubtype((byte) 0x00));
+		level.setBlock(0, 0, 0, BlockType.WHEEL.getSubtype((byte) 0x01));
+		short[] original = level.getCodes().clone();
+
+		// (x,z) -> (SIZE-1-z,x)
+		Rotate.rotate(level, 1);
+		assertEquals(BlockType.STONE_STAIR.getSubtype((byte) 0x03), level.getBlock(12, 2, 1));
+		assertEquals(BlockType.WHEEL.getSubtype((byte) 0x00), level.getBlock(15, 0, 0));
+		assertEquals(BlockType.AIR, level.getBlock(1, 2, 3));
+
+		Rotate.rotate(level, 3);
+		assertArrayEquals(original, level.getCodes());
+		Rotate.rotate(level, 2);
+		Rotate.rotate(level, 2);
+		assertArrayEquals(original, level.getCodes());
+	}
+
+	@Test
+	public void testHalfPillar() throws Exception {
+		MekoLevel level = TestLevels.empty("Rotate", "Test");
+		level.setBlock(0, 0, 0, BlockType.STONE_HALF.getSubtype((byte) 0x00));
+		level.setBlock(0, 1, 0, BlockType.METAL_HALF.getSubtype((byte) 0x14));
+
+		// Upright half pillars turn like stairs
+		int[] expected = {0x03, 0x02, 0x01, 0x00};
+		int[][] corners = {{15,0}, {15,15}, {0,15}, {0,0}};
+		for(int i=0;i<4;i++) {
+			Rotate.rotate(level, 1);
+			int[] xz = corners[i];
+			assertEquals(BlockType.STONE_HALF.getSubtype((byte) expected[i]), level.getBlock(xz[0], 0, xz[1]));
+			// Unknown orientations move but keep their subtype
+			assertEquals(BlockType.METAL_HALF.getSubtype((byte) 0x14), level.getBlock(xz[0], 1, xz[1]));
+		}
+	}
+
+	/** Half pillar subtypes whose rotations are not known */
+	private static final List<Integer> UNKNOWN_HALF = Arrays.asList(0x04, 0x05, 0x06, 0x0c, 0x0f, 0x14, 0x15, 0x16, 0x17);
+
+	@Test
+	public void testComplete() {
+		// Every orientable block rotates, with all of its subtypes mapped
+		for(int value = 0; value < 256; value++) {
+			BlockType parent = BlockType.fromByte((byte) value);
+			if(parent.getSubtypes().length < 2) {
+				continue;
+			}
+			Map<BlockType, BlockType> subMap = Rotate.rotatedBlocks.get(parent);
+			assertNotNull(parent.getName(), subMap);
+			boolean half = parent == BlockType.STONE_HALF || parent == BlockType.METAL_HALF;
+			for(BlockType sub : parent.getSubtypes()) {
+				if(half && UNKNOWN_HALF.contains(sub.getValue() & 0xff)) {
+					assertNull(sub.getName(), subMap.get(sub));
+				} else {
+					assertNotNull(sub.getName(), subMap.get(sub));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package us.bliven.mekoqr;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestTransform {
+
+	private static MekoLevel level() throws Exception {
+		MekoLevel level = TestLevels.empty("Transform", "Test");
+		level.setBlock(1, 2, 3, BlockType.STONE_STAIR.getSubtype((byte) 0x00));
+		level.setBlock(4, 5, 6, BlockType.MOTOR.getSubtype((byte) 0x01));
+		level.setBlock(0, 0, 9, BlockType.CURVED_RAIL.getSubtype((byte) 0x12));
+		return level;
+	}
+
+	@Test
+	public void testRotate() throws Exception {
+		MekoLevel level = level();
+		for(int r = 0; r < 4; r++) {
+			MekoLevel expected = level();
+			Rotate.rotate(expected, r);
+			assertArrayEquals(expected.getCodes(), Transform.IDENTITY.rotate(r).apply(level).getCodes());
+		}
+	}
+
+	@Test
+	public void testCompose() throws Exception {
+		MekoLevel level = level();
+		assertTrue(Transform.IDENTITY.rotate(1).rotate(3).isIdentity());
+		assertTrue(Transform.IDENTITY.mirrorX().mirrorX().isIdentity());
+		assertTrue(Transform.IDENTITY.mirrorX().rotate(2).mirrorZ().isIdentity());
+		assertTrue(Transform.IDENTITY.mirrorX().rotate(1).mirrorX().rotate(1).isIdentity());
+
+		// One pass matches step by step
+		Transform t = Transform.IDENTITY.mirrorX().rotate(1).translate(1, -2, 0);
+		MekoLevel stepwise = Transform.IDENTITY.translate(1, -2, 0).apply(
+				Transform.IDENTITY.rotate(1).apply(Transform.IDENTITY.mirrorX().apply(level)));
+		assertArrayEquals(stepwise.getCodes(), t.apply(level).getCodes());
+
+		// Motor facing E is unchanged by mirroring x
+		MekoLevel mirrored = Transform.IDENTITY.mirrorX().apply(level);
+		assertEquals(BlockType.MOTOR.getSubtype((byte) 0x01), mirrored.getBlock(11, 5, 6));
+		assertEquals(BlockType.STONE_STAIR.getSubtype((byte) 0x02), mirrored.getBlock(14, 2, 3));
+	}
+
+	@Test
+	public void testToOrigin() throws Exception {
+		MekoLevel level = level();
+		Transform t = Transform.IDENTITY.rotate(1).toOrigin(level);
+		int[] bounds = t.apply(level).getBounds();
+		assertArrayEquals(new int[] {0, 6, 0, 5, 0, 4}, bounds);
+
+		// Blocks pushed outside are dropped
+		MekoLevel shifted = Transform.IDENTITY.translate(-1, 0, 0).apply(level);
+		assertEquals(2, shifted.getBlocks().size());
+		assertEquals("Transform", shifted.getTitle());
+	}
+}
@@ -92,11 +92,14 @@ public class Main
 				(req, res) -> new ModelAndView(params, "decode.html.hbs"),
 				hbars);
 		post(webroot+Routes.DECODE_JSON, new MekoLevelRoute(),new JsonTransformer());
+		post(webroot+Routes.DECODE_ALL_JSON, new MekoLevelRoute(true),new JsonTransformer());
+		post(webroot+Routes.DECODE_RAW_JSON, new RawLevelRoute(),new JsonTransformer());
 		
 		get(webroot+Routes.ROTATE,
 				(req, res) -> new ModelAndView(params, "rotate.html.hbs"),
 				hbars);
 		post(webroot+Routes.ROTATE_PNG, new RotateRoute());
+		post(webroot+Routes.ROTATE_ALL_ZIP, new RotateAllRoute());
 		
 		// Better exception handling, for debugging
 //		if(params.isLocalhost())
@@ -29,6 +29,7 @@ import static spark.Spark.halt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
 import java.util.zip.DataFormatException;
 import java.util.zip.ZipException;
 
@@ -44,16 +45,62 @@ import spark.Response;
 import spark.Route;
 import us.bliven.mekoqr.MekoLevel;
 import us.bliven.mekoqr.MekoReader;
+import us.bliven.mekoqr.MekoReaderPool;
 
-import com.google.zxing.ChecksumException;
-import com.google.zxing.FormatException;
 import com.google.zxing.NotFoundException;
+import com.google.zxing.ReaderException;
  
 public class MekoLevelRoute implements Route {
 	private static final Logger logger = LoggerFactory.getLogger(MekoLevelRoute.class);
 
+	/** Shared between all routes & request threads */
+	static final MekoReaderPool readers = new MekoReaderPool(true, true);
+
+	private final boolean all;
+
+	/**
+	 * Decode a single level from each upload
+	 */
+	public MekoLevelRoute() {
+		this(false);
+	}
+	/**
+	 * @param all Decode every level in the upload, returning a list
+	 */
+	public MekoLevelRoute(boolean all) {
+		this.all = all;
+	}
+
 	@Override
-	public MekoLevel handle(Request request, Response response) {
+	public Object handle(Request request, Response response) {
+		if(all) {
+			List<MekoLevel> levels = decode(request, MekoReader::readAllQR);
+			if(levels != null) {
+				logger.debug("Parsed {} levels",levels.size());
+			}
+			return levels;
+		}
+		return readLevel(request);
+	}
+
+	/**
+	 * Decode the level in an uploaded image, halting the request on errors
+	 * @param request
+	 * @return the level, or null if the request was halted
+	 */
+	public MekoLevel readLevel(Request request) {
+		MekoLevel level = decode(request, MekoReader::readQR);
+		if(level != null) {
+			logger.debug("Parsed the level");
+		}
+		return level;
+	}
+
+	private interface UploadTask<T> {
+		T apply(MekoReader reader, InputStream is) throws ReaderException, IOException, DataFormatException;
+	}
+
+	private <T> T decode(Request request, UploadTask<T> task) {
 	    request.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement("/cache"));
 	    logger.debug("Handling MekoLevel");
 	    try {
@@ -74,11 +121,7 @@ public class MekoLevelRoute implements Route {
 	    	}
 	    	try (InputStream is = part.getInputStream()) {
 	    		logger.debug("Got input stream with {} available",is.available());
-
-	    		MekoReader reader = new MekoReader(true, true);
-	    		MekoLevel level = reader.readQR(is);
-	    		logger.debug("Parsed the level");
-	    		return level;
+	    		return readers.apply(reader -> task.apply(reader, is));
 	    	}
 	    } catch(NotFoundException e) {
 	    	// NotFoundExceptions don't have message or stack trace
@@ -89,7 +132,7 @@ public class MekoLevelRoute implements Route {
 	    	logger.error("Invalid QR code");
 	    	halt(500,"QR code is not a Mekorama level.");
 	    	return null;
-	    } catch (IOException | ServletException | ChecksumException | FormatException | DataFormatException e) {
+	    } catch (IOException | ServletException | ReaderException | DataFormatException e) {
 	    	String msg = e.getMessage();
 	    	if(msg == null) {
 	    		msg = e.getClass().getSimpleName();
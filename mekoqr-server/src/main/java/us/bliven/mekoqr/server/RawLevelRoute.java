@@ -0,0 +1,78 @@
+package us.bliven.mekoqr.server;
+
+import static spark.Spark.halt;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.zxing.ReaderException;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import us.bliven.mekoqr.MekoLevel;
+
+/**
+ * Decode a level from a QR payload in the POST body, without any image
+ * processing.
+ *
+ * The encoding is given by the <tt>encoding</tt> parameter (hex, base64 or
+ * binary). Without it, octet-stream bodies are binary, and text bodies are
+ * hex if they contain only hex digits and whitespace, otherwise base64.
+ */
+public class RawLevelRoute implements Route {
+	private static final Logger logger = LoggerFactory.getLogger(RawLevelRoute.class);
+
+	private static final Pattern HEX = Pattern.compile("[0-9A-Fa-f\\s]+");
+
+	@Override
+	public MekoLevel handle(Request request, Response response) {
+		String encoding = request.queryParams("encoding");
+		if(encoding == null) {
+			String type = request.contentType();
+			if(type != null && type.startsWith("application/octet-stream")) {
+				encoding = "binary";
+			} else if(HEX.matcher(request.body()).matches()) {
+				encoding = "hex";
+			} else {
+				encoding = "base64";
+			}
+		}
+		try {
+			MekoLevel level;
+			switch(encoding) {
+			case "binary":
+				level = MekoLevelRoute.readers.readPayload(request.bodyAsBytes());
+				break;
+			case "hex":
+				String hex = request.body();
+				level = MekoLevelRoute.readers.apply(reader -> reader.readPayloadHex(hex));
+				break;
+			case "base64":
+				String base64 = request.body();
+				level = MekoLevelRoute.readers.apply(reader -> reader.readPayloadBase64(base64));
+				break;
+			default:
+				logger.warn("Invalid encoding parameter {}",encoding);
+				halt(400,"Require parameter encoding=[hex,base64,binary]");
+				return null;
+			}
+			logger.debug("Parsed the level from a {} payload",encoding);
+			return level;
+		} catch (DataFormatException | IOException e) {
+			logger.error("Invalid payload",e);
+			String msg = e.getMessage();
+			halt(400,msg == null ? "Payload is not a Mekorama level." : "Payload is not a Mekorama level: "+msg);
+			return null;
+		} catch (ReaderException e) {
+			// Not thrown, since no image is read
+			logger.error("Unexpected QR error",e);
+			halt(500,"Unexpected QR error");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package us.bliven.mekoqr.server;
+
+import static spark.Spark.halt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.servlet.ServletOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import us.bliven.mekoqr.MekoLevel;
+import us.bliven.mekoqr.MekoWriter;
+import us.bliven.mekoqr.Transform;
+
+/**
+ * Decode a level once and return a ZIP with a QR code for each of the four
+ * rotations, named rotation0.png through rotation3.png.
+ */
+public class RotateAllRoute implements Route {
+	private static final Logger logger = LoggerFactory.getLogger(RotateAllRoute.class);
+
+	private MekoLevelRoute levelRoute = new MekoLevelRoute();
+	/** MekoWriter reuses buffers, so each rendering thread needs its own */
+	private final ThreadLocal<MekoWriter> writers = ThreadLocal.withInitial(MekoWriter::new);
+
+	@Override
+	public Object handle(Request request, Response response) {
+		// Parse level from request
+		MekoLevel level = levelRoute.readLevel(request);
+		if(level == null) {
+			return null;
+		}
+
+		// Render all rotations in parallel
+		List<Callable<byte[]>> tasks = new ArrayList<>(4);
+		for(int r = 0; r < 4; r++) {
+			// The unrotated level can reuse its original payload
+			MekoLevel rotated = r == 0 ? level : Transform.IDENTITY.rotate(r).apply(level);
+			tasks.add(() -> {
+				ByteArrayOutputStream png = new ByteArrayOutputStream();
+				writers.get().write(png, rotated);
+				return png.toByteArray();
+			});
+		}
+		List<byte[]> images = new ArrayList<>(4);
+		try {
+			for(Future<byte[]> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+				images.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			logger.error("Error generating QR code",e.getCause());
+			halt(400,"Unable to generate QR code");
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			halt(503,"Interrupted");
+			return null;
+		}
+
+		response.type("application/zip");
+		response.header("Content-Disposition", "attachment; filename=\"rotations.zip\"");
+		try( ServletOutputStream out = response.raw().getOutputStream();
+				ZipOutputStream zip = new ZipOutputStream(out) ) {
+			// PNGs are already compressed
+			zip.setLevel(Deflater.NO_COMPRESSION);
+			for(int r = 0; r < images.size(); r++) {
+				zip.putNextEntry(new ZipEntry("rotation"+r+".png"));
+				zip.write(images.get(r));
+				zip.closeEntry();
+			}
+		} catch (IOException e) {
+			logger.error("Error writing rotations",e);
+			halt(500,"Unable to write rotations");
+			return null;
+		}
+
+		return ""; //Value overridden by the output stream
+	}
+}
@@ -45,12 +45,13 @@ public class RotateRoute implements Route {
 	private static final Logger logger = LoggerFactory.getLogger(RotateRoute.class);
 
 	private MekoLevelRoute levelRoute = new MekoLevelRoute();
-	private MekoWriter writer = new MekoWriter();
+	/** MekoWriter reuses buffers, so each request thread needs its own */
+	private final ThreadLocal<MekoWriter> writers = ThreadLocal.withInitial(MekoWriter::new);
 
 	@Override
 	public Object handle(Request request, Response response) {
 		// Parse level from request
-		MekoLevel level = levelRoute.handle(request, response);
+		MekoLevel level = levelRoute.readLevel(request);
 		if(level == null) {
 			return null;
 		}
@@ -75,7 +76,7 @@ public class RotateRoute implements Route {
 		
 		// Generate output image
 		try( ServletOutputStream out = response.raw().getOutputStream() ) {
-			writer.write(out, level);
+			writers.get().write(out, level);
 		} catch (IOException | WriterException e) {
 			logger.error("Error generating QR code",e);
 			halt(400,"Unable to generate QR code");
@@ -27,7 +27,10 @@ package us.bliven.mekoqr.server;
 public class Routes {
 	public static final String ROOT ="/index.html";
 	public static final String DECODE_JSON ="/decode.json";
+	public static final String DECODE_ALL_JSON ="/decodeall.json";
+	public static final String DECODE_RAW_JSON ="/decoderaw.json";//?encoding=hex|base64|binary
 	public static final String DECODE ="/decode.html";
 	public static final String ROTATE_PNG ="/rotate.png";//?rotations=:rotations
+	public static final String ROTATE_ALL_ZIP ="/rotateall.zip";
 	public static final String ROTATE ="/rotate.html";
 }